@@ -1,43 +1,64 @@
 import java.util.Base64;
 
-import javax.crypto.BadPaddingException;
+import de.feckert.bbs.security.FrameCipher;
+
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.net.Socket;
-import java.security.InvalidKeyException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.EncodedKeySpec;
-import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Scanner;
 
 //TODO(all): Make a good client
 
 /**
- * Hasty implementation for a JERAN Client.
+ * Hasty implementation for a JERAN Client. Uses the length-prefixed
+ * frames of protocol v2 with AES-GCM session encryption unless started
+ * with "--legacy".
  * */
 public class ClientMain {
 	// I know that its not best practice to do this, but this is just for testing and not a client
 	// implementation meant to be broadly used.
-	public static void main(String[] args) throws IOException, InterruptedException, InvalidKeySpecException,
-			NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+	public static void main(String[] args) throws IOException, InterruptedException, GeneralSecurityException {
+		boolean legacy = args.length > 0 && args[0].equals("--legacy");
 		Socket sock = new Socket("localhost", 3103);
 		PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-		BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+		PushbackInputStream raw = new PushbackInputStream(sock.getInputStream());
+		Scanner scanner = new Scanner(System.in);
 
-		int msgType = in.read();
+		int msgType = raw.read();
 		if (msgType == 2) {
-			out.println("25");
+			out.println(legacy ? "25" : "25 v2 aes");
+
+			// The server acknowledges v2 with a HELLO frame, anything else means it stays with the old protocol
+			if (!legacy) {
+				int first = raw.read();
+				if (first == 5) {
+					DataInputStream frames = new DataInputStream(raw);
+					byte[] capabilities = new byte[frames.readInt()];
+					frames.readFully(capabilities);
+					runV2(sock, frames, new DataOutputStream(sock.getOutputStream()), scanner,
+							new String(capabilities, StandardCharsets.US_ASCII).contains("aes"));
+					return;
+				}
+				raw.unread(first);
+			}
 		}
 
-		Scanner scanner = new Scanner(System.in);
+		BufferedReader in = new BufferedReader(new InputStreamReader(raw));
 		PublicKey publicKey;
 		Cipher encryptionCipher = Cipher.getInstance("RSA");
 		boolean encryptedMessages = false;
@@ -101,4 +122,86 @@ public class ClientMain {
 			}
 		}
 	}
+
+	// Protocol v2 state
+	private static Socket v2Socket;
+	private static DataOutputStream v2Out;
+	private static Scanner v2Scanner;
+	private static boolean hybrid;
+	private static Cipher rsaCipher = null;
+	private static FrameCipher frameCipher = null;
+
+	/**
+	 * Client loop for protocol v2, every message is a frame consisting of
+	 * a type byte, the payload length (int) and the payload.
+	 * */
+	private static void runV2(Socket sock, DataInputStream in, DataOutputStream out, Scanner scanner, boolean aes)
+			throws IOException, GeneralSecurityException {
+		v2Socket = sock;
+		v2Out = out;
+		v2Scanner = scanner;
+		hybrid = aes;
+		while (!sock.isClosed()) {
+			int msgType = in.readUnsignedByte();
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			handleV2Frame(msgType, payload);
+		}
+	}
+
+	private static void handleV2Frame(int msgType, byte[] payload) throws IOException, GeneralSecurityException {
+		if (msgType == 0x01) {
+			System.out.print(new String(payload, StandardCharsets.UTF_8));
+		} else if (msgType == 0x00) {
+			System.out.print("> ");
+			byte[] input = v2Scanner.nextLine().getBytes(StandardCharsets.UTF_8);
+			if (rsaCipher != null) input = rsaCipher.doFinal(input); // Raw cipher text, no Base64
+			sendV2Frame(0x01, input);
+		} else if (msgType == 0x03) {
+			// The payload is the encoded public key
+			PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(payload));
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+
+			if (hybrid) {
+				// Only wrap our AES session key with it, everything else is sealed with AES-GCM
+				SecretKey key = FrameCipher.generateKey();
+				sendV2Frame(0x03, cipher.doFinal(key.getEncoded()));
+				frameCipher = new FrameCipher(key, false);
+			} else {
+				rsaCipher = cipher;
+			}
+		} else if (msgType == 0x04) {
+			rsaCipher = null;
+			frameCipher = null;
+		} else if (msgType == 0x07 && frameCipher != null) {
+			// One or more sealed frames
+			DataInputStream sealed = new DataInputStream(new ByteArrayInputStream(frameCipher.decrypt(payload, 0, payload.length)));
+			while (sealed.available() > 0) {
+				int type = sealed.readUnsignedByte();
+				byte[] data = new byte[sealed.readInt()];
+				sealed.readFully(data);
+				handleV2Frame(type, data);
+			}
+		} else if (msgType == 0xFF) {
+			v2Socket.close();
+		}
+	}
+
+	private static void sendV2Frame(int type, byte[] payload) throws IOException, GeneralSecurityException {
+		if (frameCipher != null && type == 0x01) {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			DataOutputStream inner = new DataOutputStream(frame);
+			inner.writeByte(type);
+			inner.writeInt(payload.length);
+			inner.write(payload);
+			payload = frameCipher.encrypt(frame.toByteArray(), 0, frame.size());
+			type = 0x07;
+		}
+
+		v2Out.writeByte(type);
+		v2Out.writeInt(payload.length);
+		v2Out.write(payload);
+		v2Out.flush();
+	}
 }
@@ -61,6 +61,7 @@ public class Main {
 		SERVER.saveStop();
 		SERVER.POST_HANDLER.reset();
 		Util.STATIC_TEXTS.clear();
+		Util.RENDERED_TEXTS.clear();
 		try {
 			Logger.reset();
 			System.out.println();
@@ -0,0 +1,136 @@
+package de.feckert.bbs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds named counters and histograms of the JERAN-BBS SERVER, e.g. bytes
+ * written per command. Both are created on first use and can be updated
+ * from any thread without contention.
+ *
+ * @author Felix Eckert
+ */
+public class Metrics {
+	private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+	/**
+	 * Increments a counter by one.
+	 *
+	 * @param name Name of the counter
+	 */
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Adds an amount to a counter.
+	 *
+	 * @param name   Name of the counter
+	 * @param amount The amount to be added
+	 */
+	public static void add(String name, long amount) {
+		LongAdder counter = COUNTERS.get(name);
+		if (counter == null) counter = COUNTERS.computeIfAbsent(name, (k) -> new LongAdder());
+		counter.add(amount);
+	}
+
+	/**
+	 * @param name Name of the counter
+	 * @return Current value of the counter, 0 if it does not exist
+	 */
+	public static long get(String name) {
+		LongAdder counter = COUNTERS.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * @param name Name of the histogram
+	 * @return The histogram, created if it does not exist
+	 */
+	public static Histogram histogram(String name) {
+		Histogram histogram = HISTOGRAMS.get(name);
+		if (histogram == null) histogram = HISTOGRAMS.computeIfAbsent(name, (k) -> new Histogram());
+		return histogram;
+	}
+
+	/**
+	 * Creates a sorted dump of all counters and histograms, one "name = value" per line.
+	 *
+	 * @return The dump
+	 */
+	public static String dump() {
+		TreeMap<String, Object> sorted = new TreeMap<>();
+		COUNTERS.forEach((k, v) -> sorted.put(k, v.sum()));
+		sorted.putAll(HISTOGRAMS);
+
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+			out.append(entry.getKey()).append(" = ").append(entry.getValue()).append("\n");
+		}
+		return out.toString();
+	}
+
+	public static void reset() {
+		COUNTERS.clear();
+		HISTOGRAMS.clear();
+	}
+
+	/**
+	 * Distribution of recorded values (e.g. latencies in milliseconds) in
+	 * power of two buckets, bucket n counts the values below 2^n.
+	 */
+	public static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		/**
+		 * @param value The value to be recorded, negative values are recorded as 0
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			count.increment();
+			sum.add(value);
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param percentile Percentile between 0 and 1
+		 * @return Upper bound of the bucket holding the percentile
+		 */
+		public long getPercentile(double percentile) {
+			long total = count.sum();
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i].sum();
+				if (total > 0 && seen >= Math.ceil(total * percentile)) return Math.min((1L << i) - 1, max.get());
+			}
+			return max.get();
+		}
+
+		@Override
+		public String toString() {
+			long total = count.sum();
+			return String.format("count=%s avg=%s p50<=%s p90<=%s p99<=%s max=%s", total,
+					total == 0 ? 0 : sum.sum() / total, getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), max.get());
+		}
+	}
+}
@@ -1,9 +1,22 @@
 package de.feckert.bbs;
 
 import de.gansgruppe.formats.LST;
+import de.feckert.bbs.net.NioEngine;
+import de.feckert.bbs.security.HashExecutor;
+import de.feckert.bbs.security.KeyPool;
+import de.feckert.bbs.security.RateLimiter;
+import de.feckert.bbs.security.ResumeTokens;
 import de.feckert.bbs.security.Verifier;
+import de.feckert.bbs.user.CommandRegistry;
 import de.feckert.bbs.user.FileUploads;
+import de.feckert.bbs.user.FlushPolicy;
+import de.feckert.bbs.user.PacingScheduler;
+import de.feckert.bbs.user.PostBackups;
+import de.feckert.bbs.user.PostRenderCache;
 import de.feckert.bbs.user.Posts;
+import de.feckert.bbs.user.SessionLifecycle;
+import de.feckert.bbs.user.SessionRegistry;
+import de.feckert.bbs.user.UserSession;
 import de.feckert.bbs.user.UserThread;
 
 import java.io.File;
@@ -12,8 +25,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.UUID;
 
 public class Server implements Runnable {
@@ -23,10 +36,18 @@ public class Server implements Runnable {
 	private int port;
 
 	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	private NioEngine nioEngine;
 	private Thread serverThread;
 
-	public HashMap<UUID, UserThread> USERS = new HashMap<>();
-	public ArrayList<String> NAMES = new ArrayList<>();
+	public final SessionRegistry SESSIONS = new SessionRegistry();
+	public final CommandRegistry COMMANDS = new CommandRegistry();
+	public SessionLifecycle LIFECYCLE;
+	public PacingScheduler PACING;
+	public FlushPolicy FLUSH_POLICY;
+	public KeyPool KEY_POOL;
+	public ResumeTokens RESUME_TOKENS;
+	public RateLimiter RATE_LIMITER;
 	public Posts POST_HANDLER;
 	public FileUploads FILE_HANDLER;
 
@@ -34,6 +55,7 @@ public class Server implements Runnable {
 
 	public Server() {
 		this.LOGGER = Logger.create("JERAN:SERV");
+		UserSession.registerCommands(COMMANDS);
 	}
 
 	public void init() {
@@ -55,52 +77,119 @@ public class Server implements Runnable {
 
 		// Initialize server fields
 		this.port = CONFIGURATION.getInteger("SERVER", "PORT");
+		Threads.VIRTUAL = CONFIGURATION.getBoolean("SERVER", "VIRTUAL_THREADS");
+		if (Threads.VIRTUAL && !Threads.virtualSupported())
+			LOGGER.warn("VIRTUAL_THREADS enabled but not supported by this JRE, using platform threads!");
 		this.serverThread = new Thread(this, "JERAN:SERV");
 		this.POST_HANDLER = new Posts();
 		this.FILE_HANDLER = new FileUploads();
+		this.FLUSH_POLICY = new FlushPolicy(CONFIGURATION.getString("SERVER", "FLUSH_POLICY"),
+				CONFIGURATION.getInteger("SERVER", "FLUSH_BUFFER_SIZE"), CONFIGURATION.getInteger("SERVER", "FLUSH_MAX_LATENCY"),
+				CONFIGURATION.getInteger("SERVER", "OUTPUT_LIMIT") * 1024, CONFIGURATION.getInteger("SERVER", "OUTPUT_DROP_LIMIT") * 1024);
+		this.LIFECYCLE = new SessionLifecycle(CONFIGURATION.getLong("SERVER", "SESSION_IDLE_TIMEOUT"));
+		this.KEY_POOL = new KeyPool(CONFIGURATION.getInteger("SERVER", "KEY_POOL_SIZE"));
+		this.RESUME_TOKENS = new ResumeTokens(CONFIGURATION.getLong("SERVER", "RESUME_TOKEN_LIFETIME"));
+		this.RATE_LIMITER = new RateLimiter(CONFIGURATION);
 
-		// Load Texts
-		LOGGER.info("Loading static texts!");
-		Util.loadTexts();
+		// Setup Connection Engine; BLOCKING uses a thread per user, NIO a fixed pool of IO-Threads
+		this.nioEngine = null;
+		if (CONFIGURATION.getString("SERVER", "CONNECTION_ENGINE").equals("NIO")) {
+			try {
+				this.nioEngine = new NioEngine(CONFIGURATION.getInteger("SERVER", "IO_THREADS"));
+			} catch (IOException e) {
+				LOGGER.err("Failed to open NIO Selectors, falling back to BLOCKING engine!");
+				e.printStackTrace();
+			}
+		}
+		this.PACING = nioEngine == null ? new PacingScheduler(CONFIGURATION.getInteger("SERVER", "PACING_THREADS")) : null;
 
 		Verifier.DB_PATH = new File(Util.getProgramDirectory(Main.class), CONFIGURATION.getString("SERVER", "VERIFIER_DB"));
-		Verifier.loadVerifierDB();
-
-		// Initialise PostSaveService
+		Verifier.STORE_PATH = new File(Util.getProgramDirectory(Main.class), CONFIGURATION.getString("SERVER", "VERIFIER_STORE"));
+		Verifier.EXECUTOR = new HashExecutor(CONFIGURATION.getInteger("SERVER", "HASH_THREADS"),
+				CONFIGURATION.getInteger("SERVER", "HASH_QUEUE_LIMIT"), CONFIGURATION.getInteger("SERVER", "HASH_QUEUE_PER_IP"));
 		Posts.POST_SAVE_DIRECTORY = new File(
 				CONFIGURATION.getString("POST_HANDLER", "POST_SAVE_DIR")
 						.replace("%server_dir%", Util.getProgramDirectory(Main.class)));
+		Posts.READ_CACHE = new PostRenderCache(CONFIGURATION.getLong("POST_HANDLER", "READ_CACHE_SIZE") * 1024);
+		Posts.SEARCH_RESULTS = CONFIGURATION.getInteger("POST_HANDLER", "SEARCH_RESULTS");
+
+		// Load Texts, Verifiers and Posts in parallel, they do not depend on each other
+		LOGGER.info("Loading static texts, verifiers and posts!");
+		long loadStart = System.currentTimeMillis();
+		Thread textLoader = Threads.create(Util::loadTexts, "JERAN:LTXT");
+		Thread postLoader = Threads.create(Posts::loadPosts, "JERAN:LPST");
+		textLoader.start();
+		postLoader.start();
+		Verifier.loadVerifierDB();
+		try {
+			textLoader.join();
+			postLoader.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.infof("Loaded everything in %sms!\n", System.currentTimeMillis() - loadStart);
+
+		Verifier.setupCompactionService(CONFIGURATION.getLong("SERVER", "VERIFIER_COMPACT_PERIOD"),
+				CONFIGURATION.getLong("SERVER", "VERIFIER_COMPACT_RECORDS"));
+
+		// Initialise PostSaveService
 		Posts.setupPostSaveService(CONFIGURATION.getLong("POST_HANDLER", "SAVE_SERVICE_EXEC_PERIOD"),
 				CONFIGURATION.getString("POST_HANDLER", "SAVE_SERVICE_TIME_UNIT"));
+		Posts.setupBackupService(CONFIGURATION.getLong("POST_HANDLER", "BACKUP_PERIOD"),
+				CONFIGURATION.getString("POST_HANDLER", "SAVE_SERVICE_TIME_UNIT"),
+				new PostBackups(Posts.POST_SAVE_DIRECTORY, CONFIGURATION.getInteger("POST_HANDLER", "BACKUP_KEEP_LAST"),
+						CONFIGURATION.getInteger("POST_HANDLER", "BACKUP_KEEP_HOURLY"), CONFIGURATION.getInteger("POST_HANDLER", "BACKUP_KEEP_DAILY")));
 	}
 
 	public void start() {
+		this.LIFECYCLE.start();
+		this.KEY_POOL.start();
 		this.serverThread.start();
 		LOGGER.info("Server-Thread Started!");
 	}
 
 	public void saveStop() {
 		LOGGER.info("Save-Stopping Server");
+		LOGGER.infof("Sessions at stop: %s\n", LIFECYCLE);
+		LOGGER.infof("KeyPool at stop: %s\n", KEY_POOL);
+		LOGGER.infof("HashExecutor at stop: %s\n", Verifier.EXECUTOR);
+		LOGGER.infof("ResumeTokens at stop: %s\n", RESUME_TOKENS);
+		LOGGER.infof("RateLimiter at stop: %s\n", RATE_LIMITER);
+		LOGGER.infof("ReadCache at stop: %s\n", Posts.READ_CACHE);
+		LOGGER.infof("SearchIndex at stop: %s\n", Posts.SEARCH_INDEX);
+		LOGGER.infof("Metrics at stop:\n%s", Metrics.dump());
 		// Disconnect Each User
-		USERS.forEach((k, v) -> {
+		SESSIONS.forEach((v) -> {
 			try {
 				v.disconnect();
-			} catch (IOException | InterruptedException e) {
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		});
 
 		// Close Server Socket to force exit the thread
 		try {
-			this.serverSocket.close();
+			if (this.serverSocket != null) this.serverSocket.close();
+			if (this.serverChannel != null) this.serverChannel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if (nioEngine != null) nioEngine.stop();
+		LIFECYCLE.stop();
+		KEY_POOL.stop();
+		Verifier.EXECUTOR.stop();
+		if (PACING != null) PACING.stop();
 
-		USERS.clear();
+		SESSIONS.clear();
 	}
 
 	public void run() {
+		if (nioEngine != null) {
+			runNonBlocking();
+			return;
+		}
+
 		try {
 			this.serverSocket = new ServerSocket(port);
 			LOGGER.infof("Opened ServerSocket under port %s!\n", port);
@@ -110,7 +199,7 @@ public class Server implements Runnable {
 					// Prepare for next User
 					UUID uuid = UUID.randomUUID();
 					Socket socket = serverSocket.accept();
-					USERS.put(uuid, new UserThread(uuid, socket)); // Register User
+					SESSIONS.register(new UserThread(uuid, socket)).start(); // Register User before it can terminate
 					LOGGER.infof("Accepted new Client [IP: %s]!\n", ((InetSocketAddress) socket.getRemoteSocketAddress()).getHostString());
 				} catch (SocketException e) {
 					break;
@@ -125,13 +214,55 @@ public class Server implements Runnable {
 		}
 	}
 
+	/**
+	 * Accept loop for the NIO engine, accepted channels are handed
+	 * to the IO-Threads of the engine.
+	 */
+	private void runNonBlocking() {
+		try {
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.bind(new InetSocketAddress(port));
+			LOGGER.infof("Opened ServerSocketChannel under port %s!\n", port);
+			nioEngine.start();
+
+			while (!Server.SHUTDOWN) {
+				SocketChannel channel = null;
+				try {
+					// Prepare for next User
+					UUID uuid = UUID.randomUUID();
+					channel = serverChannel.accept();
+					String ip = ((InetSocketAddress) channel.getRemoteAddress()).getHostString(); // The IO-Thread may close it once started
+					SESSIONS.register(nioEngine.create(uuid, channel)).start(); // Register User before it can terminate
+					LOGGER.infof("Accepted new Client [IP: %s]!\n", ip);
+				} catch (IOException e) {
+					if (!serverChannel.isOpen()) break;
+
+					// Only this connection broke before its session was started, keep accepting
+					LOGGER.warnf("Failed to accept Client (%s)!\n", e);
+					try {
+						if (channel != null) channel.close();
+					} catch (IOException closeFailure) {
+						closeFailure.printStackTrace();
+					}
+				}
+			}
+
+			if (this.serverChannel.isOpen())
+				this.serverChannel.close();
+			LOGGER.info("Server Stopped!");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * @param uuid UUID for the User
 	 * @return A Username and UUID in the format "%username% (%uuid%)"
 	 */
 	public String getUserName(UUID uuid) {
-		if (!USERS.containsKey(uuid)) return "unknown (" + uuid + ")";
-		return USERS.get(uuid).getName() + "(" + uuid + ")";
+		UserSession session = SESSIONS.get(uuid);
+		if (session == null) return "unknown (" + uuid + ")";
+		return session.getName() + "(" + uuid + ")";
 	}
 
 	public boolean isAlive() {
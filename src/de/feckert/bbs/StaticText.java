@@ -0,0 +1,131 @@
+package de.feckert.bbs;
+
+import de.feckert.bbs.net.FrameCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A static text (see {@link Util#STATIC_TEXTS}) pre-rendered into the frames
+ * of the JERAN COM-PROTOCOL. The frames are encoded once at startup and
+ * shared by all sessions, sending a static text does not allocate or
+ * encode anything per user.
+ * <p>
+ * The frames are exactly what writing the text segment by segment
+ * produces: one 0x01 frame per line, followed by a terminating 0x01 LF.
+ * They are rendered once for every {@link FrameCodec}.
+ *
+ * @author Felix Eckert
+ */
+public class StaticText {
+	private static final FrameCodec[] CODECS = {FrameCodec.LEGACY, FrameCodec.V2};
+	private static final Frame[] TERMINATORS = new Frame[CODECS.length];
+
+	static {
+		for (FrameCodec codec : CODECS) TERMINATORS[codec.index()] = new Frame(codec.encode(FrameCodec.OUTPUT, "\n"));
+	}
+
+	private final String text;
+	private final Frame[][] segments;
+	private final Frame[] whole;
+
+	private StaticText(String text, Frame[][] segments, Frame[] whole) {
+		this.text = text;
+		this.segments = segments;
+		this.whole = whole;
+	}
+
+	/**
+	 * Renders a text into its frames.
+	 *
+	 * @param text The text to be rendered
+	 * @return The rendered text
+	 */
+	public static StaticText render(String text) {
+		String[] lines = text.split("\n");
+		Frame[][] segments = new Frame[CODECS.length][lines.length];
+		Frame[] whole = new Frame[CODECS.length];
+
+		for (FrameCodec codec : CODECS) {
+			Frame terminator = TERMINATORS[codec.index()];
+			Frame[] rendered = segments[codec.index()];
+			int length = terminator.bytes.length;
+			for (int i = 0; i < lines.length; i++) {
+				rendered[i] = new Frame(codec.encode(FrameCodec.OUTPUT, lines[i]));
+				length += rendered[i].bytes.length;
+			}
+
+			// All frames in one piece for users without write delay
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			for (Frame segment : rendered) {
+				System.arraycopy(segment.bytes, 0, bytes, offset, segment.bytes.length);
+				offset += segment.bytes.length;
+			}
+			System.arraycopy(terminator.bytes, 0, bytes, offset, terminator.bytes.length);
+			whole[codec.index()] = new Frame(bytes);
+		}
+
+		return new StaticText(text, segments, whole);
+	}
+
+	/**
+	 * @return The raw text
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @param codec Codec used by the session
+	 * @return One frame per line, to be sent with the write delay in between
+	 */
+	public Frame[] getSegments(FrameCodec codec) {
+		return segments[codec.index()];
+	}
+
+	/**
+	 * @param codec Codec used by the session
+	 * @return The terminating frame sent after the last segment
+	 */
+	public Frame getTerminator(FrameCodec codec) {
+		return TERMINATORS[codec.index()];
+	}
+
+	/**
+	 * @param codec Codec used by the session
+	 * @return All segments and the terminator as a single frame
+	 */
+	public Frame getWhole(FrameCodec codec) {
+		return whole[codec.index()];
+	}
+
+	/**
+	 * An encoded, immutable piece of output. Held as an array for
+	 * stream based connections and as a direct buffer for channels.
+	 */
+	public static class Frame {
+		private final byte[] bytes;
+		private final ByteBuffer direct;
+
+		Frame(byte[] bytes) {
+			this.bytes = bytes;
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+			direct.put(bytes).flip();
+			this.direct = direct.asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return The encoded bytes, must not be modified
+		 */
+		public byte[] bytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return A fresh view of the direct buffer, ready to be written
+		 */
+		public ByteBuffer buffer() {
+			return direct.duplicate();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package de.feckert.bbs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates the threads used by the JERAN-BBS SERVER. If enabled in the
+ * configuration (SERVER.VIRTUAL_THREADS) and supported by the running
+ * JRE (Java 21+), virtual threads are created instead of platform threads.
+ * <p>
+ * Virtual threads are looked up reflectively so the server still builds
+ * and runs on older JREs, where it falls back to platform threads.
+ *
+ * @author Felix Eckert
+ */
+public class Threads {
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	/**
+	 * If user sessions and services should run on virtual threads.
+	 */
+	public static boolean VIRTUAL = false;
+
+	static {
+		Method ofVirtual = null, name = null, unstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name      = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			// Virtual Threads are not supported by this JRE
+		}
+		OF_VIRTUAL        = ofVirtual;
+		BUILDER_NAME      = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	/**
+	 * @return If the running JRE supports virtual threads
+	 */
+	public static boolean virtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates a new, unstarted thread.
+	 *
+	 * @param runnable The task of the thread
+	 * @param name     The name of the thread
+	 * @return A virtual thread if enabled and supported, else a platform thread
+	 */
+	public static Thread create(Runnable runnable, String name) {
+		if (VIRTUAL && virtualSupported()) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		return new Thread(runnable, name);
+	}
+
+	/**
+	 * Creates a single-threaded scheduled executor whose thread is
+	 * created through {@link Threads#create(Runnable, String)}.
+	 *
+	 * @param name The name of the executor thread
+	 * @return The executor
+	 */
+	public static ScheduledExecutorService newScheduledExecutor(String name) {
+		return Executors.newSingleThreadScheduledExecutor((runnable) -> create(runnable, name));
+	}
+}
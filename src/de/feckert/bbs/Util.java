@@ -19,6 +19,12 @@ public class Util {
 	 */
 	public static final HashMap<String, String> STATIC_TEXTS = new HashMap<>();
 
+	/**
+	 * Holds the STATIC_TEXTS pre-rendered into protocol frames, with the
+	 * MOTD already inserted into GREET.
+	 */
+	public static final HashMap<String, StaticText> RENDERED_TEXTS = new HashMap<>();
+
 	/**
 	 * Gets the directory of the current program
 	 *
@@ -57,6 +63,11 @@ public class Util {
 					Logger.UNIVERSAL_LOGFILE_WRITER.printf("	-> LOADED TEXT \"%s\" successfully! (%s byte(s))\n", name, textFile.length());
 				}
 			}
+
+			// Pre-Render the texts, GREET gets the MOTD inserted once here
+			STATIC_TEXTS.forEach((k, v) -> RENDERED_TEXTS.put(k, StaticText.render(v)));
+			if (STATIC_TEXTS.containsKey("GREET") && STATIC_TEXTS.containsKey("MOTD"))
+				RENDERED_TEXTS.put("GREET", StaticText.render(STATIC_TEXTS.get("GREET").replace("<MOTD>", STATIC_TEXTS.get("MOTD"))));
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -2,6 +2,7 @@ package de.feckert.bbs.admin;
 
 import de.feckert.bbs.Logger;
 import de.feckert.bbs.Main;
+import de.feckert.bbs.Threads;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -34,7 +35,7 @@ public class RemoteAdminShell implements Runnable {
 	}
 
 	public void start() {
-		this.RAS_THREAD = new Thread(this,"JERAN:RASH");
+		this.RAS_THREAD = Threads.create(this,"JERAN:RASH");
 		this.RAS_THREAD.start();
 	}
 
@@ -0,0 +1,240 @@
+package de.feckert.bbs.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes the messages of the JERAN COM-PROTOCOL.
+ * <p>
+ * {@link FrameCodec#LEGACY} writes a single opcode char followed by
+ * line-delimited text, as understood by every client.
+ * {@link FrameCodec#V2} writes length-prefixed binary frames:
+ * <pre>
+ * +------------+--------------------------+-----------------+
+ * | type (u8)  | payload length (u32, BE) | payload (bytes) |
+ * +------------+--------------------------+-----------------+
+ * </pre>
+ * V2 is requested by the client by appending "v2" to its answer of the
+ * write speed negotiation (0x02), e.g. "25 v2". The server acknowledges
+ * with a HELLO frame listing the accepted capabilities, from then on both
+ * directions use V2 frames.
+ * <p>
+ * Capabilities:
+ * <ul>
+ *     <li>v2 - length-prefixed frames</li>
+ *     <li>pipeline - input already sent by the client is handled back to
+ *     back and the output of all of it is sent at once</li>
+ *     <li>aes - (requires v2) after 0x03 the client sends an AES key wrapped
+ *     with the RSA public key, from then on all frames in both directions are
+ *     sent inside ENCRYPTED frames, see {@link de.feckert.bbs.security.FrameCipher}</li>
+ * </ul>
+ *
+ * @author Felix Eckert
+ */
+public abstract class FrameCodec {
+	//////////////////////////////////////////////////
+	// JERAN COM-PROTOCOL MESSAGE TYPES             //
+	// ---------------------------------------------//
+	// Server -> Client                             //
+	// 0x00 Request user input                      //
+	// 0x01 Write to user output                    //
+	// 0x02 Negotiate writing speed                 //
+	// 0x03 Start Encrypted Communication (one-way) //
+	// 0x04 Stop Encrypted Communication            //
+	// 0x05 Hello, accepted capabilities           //
+	// 0x06 Binary data (V2 only)                   //
+	// 0x07 Encrypted frame(s) (V2 + aes only)      //
+	// 0xFF Connection close                        //
+	// Client -> Server (V2)                        //
+	// 0x01 Input line                              //
+	// 0x03 Wrapped AES session key (aes only)      //
+	// 0x06 Binary data                             //
+	// 0x07 Encrypted frame(s) (aes only)           //
+	//////////////////////////////////////////////////
+	public static final int INPUT_REQUEST    = 0x00;
+	public static final int OUTPUT           = 0x01;
+	public static final int NEGOTIATE        = 0x02;
+	public static final int ENCRYPTION_START = 0x03;
+	public static final int ENCRYPTION_STOP  = 0x04;
+	public static final int HELLO            = 0x05;
+	public static final int BINARY           = 0x06;
+	public static final int ENCRYPTED        = 0x07;
+	public static final int CLOSE            = 0xFF;
+	public static final int INPUT            = 0x01;
+	public static final int SESSION_KEY      = 0x03;
+
+	public static final int HEADER_LENGTH = 5;
+
+	public static final FrameCodec LEGACY = new Legacy();
+	public static final FrameCodec V2     = new V2();
+
+	private final int index;
+
+	private FrameCodec(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * @return Index of the codec, for tables holding data per codec
+	 */
+	public int index() {
+		return index;
+	}
+
+	/**
+	 * @return If the codec uses length-prefixed frames
+	 */
+	public boolean isBinary() {
+		return this == V2;
+	}
+
+	/**
+	 * Encodes a message without payload.
+	 */
+	public byte[] encode(int type) {
+		return encode(type, new byte[0], 0, 0);
+	}
+
+	/**
+	 * Encodes a message with a text payload.
+	 */
+	public byte[] encode(int type, String text) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		return encode(type, payload, 0, payload.length);
+	}
+
+	/**
+	 * Encodes a message with a binary payload.
+	 */
+	public byte[] encode(int type, byte[] payload) {
+		return encode(type, payload, 0, payload.length);
+	}
+
+	/**
+	 * Encodes a message with the given payload.
+	 *
+	 * @param type    The message type
+	 * @param payload Array holding the payload
+	 * @param offset  Start of the payload in the array
+	 * @param length  Length of the payload
+	 * @return The encoded message
+	 */
+	public abstract byte[] encode(int type, byte[] payload, int offset, int length);
+
+	/**
+	 * Encodes messages of the same type back to back into one array,
+	 * as encoding and sending them one after another would.
+	 *
+	 * @param type     The message type
+	 * @param payloads The payloads, one message each
+	 * @return The encoded messages
+	 */
+	public byte[] encodeAll(int type, byte[][] payloads) {
+		byte[][] messages = new byte[payloads.length][];
+		int length = 0;
+		for (int i = 0; i < payloads.length; i++) {
+			messages[i] = encode(type, payloads[i]);
+			length += messages[i].length;
+		}
+
+		byte[] out = new byte[length];
+		int position = 0;
+		for (byte[] message : messages) {
+			System.arraycopy(message, 0, out, position, message.length);
+			position += message.length;
+		}
+		return out;
+	}
+
+	private static class Legacy extends FrameCodec {
+		// (char) (byte) 0xFF is U+FFFF, which is what has always been sent as close code
+		private static final byte[][] OPCODES = new byte[256][];
+
+		static {
+			for (int i = 0; i < 256; i++) OPCODES[i] = String.valueOf((char) (byte) i).getBytes(StandardCharsets.UTF_8);
+		}
+
+		Legacy() {
+			super(0);
+		}
+
+		@Override
+		public byte[] encode(int type, byte[] payload, int offset, int length) {
+			// Binary payloads (the public key) are sent Base64 encoded on their own line
+			if (type == ENCRYPTION_START || type == BINARY) {
+				payload = (Base64.getEncoder().encodeToString(
+						java.util.Arrays.copyOfRange(payload, offset, offset + length)) + "\n").getBytes(StandardCharsets.US_ASCII);
+				offset = 0;
+				length = payload.length;
+			} else if (type == HELLO) { // Accepted capabilities on their own line
+				byte[] line = new byte[length + 1];
+				System.arraycopy(payload, offset, line, 0, length);
+				line[length] = '\n';
+				payload = line;
+				offset = 0;
+				length = line.length;
+			}
+
+			byte[] opcode = OPCODES[type & 0xFF];
+			byte[] out = new byte[opcode.length + length];
+			System.arraycopy(opcode, 0, out, 0, opcode.length);
+			System.arraycopy(payload, offset, out, opcode.length, length);
+			return out;
+		}
+
+		@Override
+		public byte[] encodeAll(int type, byte[][] payloads) {
+			if (type == ENCRYPTION_START || type == BINARY || type == HELLO) return super.encodeAll(type, payloads);
+
+			byte[] opcode = OPCODES[type & 0xFF];
+			int length = 0;
+			for (byte[] payload : payloads) length += opcode.length + payload.length;
+
+			byte[] out = new byte[length];
+			int position = 0;
+			for (byte[] payload : payloads) {
+				System.arraycopy(opcode, 0, out, position, opcode.length);
+				System.arraycopy(payload, 0, out, position + opcode.length, payload.length);
+				position += opcode.length + payload.length;
+			}
+			return out;
+		}
+	}
+
+	private static class V2 extends FrameCodec {
+		V2() {
+			super(1);
+		}
+
+		@Override
+		public byte[] encode(int type, byte[] payload, int offset, int length) {
+			byte[] out = new byte[HEADER_LENGTH + length];
+			out[0] = (byte) type;
+			out[1] = (byte) (length >>> 24);
+			out[2] = (byte) (length >>> 16);
+			out[3] = (byte) (length >>> 8);
+			out[4] = (byte) length;
+			System.arraycopy(payload, offset, out, HEADER_LENGTH, length);
+			return out;
+		}
+
+		@Override
+		public byte[] encodeAll(int type, byte[][] payloads) {
+			int length = 0;
+			for (byte[] payload : payloads) length += HEADER_LENGTH + payload.length;
+
+			byte[] out = new byte[length];
+			int position = 0;
+			for (byte[] payload : payloads) {
+				out[position] = (byte) type;
+				out[position + 1] = (byte) (payload.length >>> 24);
+				out[position + 2] = (byte) (payload.length >>> 16);
+				out[position + 3] = (byte) (payload.length >>> 8);
+				out[position + 4] = (byte) payload.length;
+				System.arraycopy(payload, 0, out, position + HEADER_LENGTH, payload.length);
+				position += HEADER_LENGTH + payload.length;
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package de.feckert.bbs.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a client into messages. In legacy mode
+ * every line is an {@link FrameCodec#INPUT} message, in V2 mode the
+ * length-prefixed frames are parsed.
+ * <p>
+ * Messages are handed out as a range of the internal buffer, the decoder
+ * itself never creates Strings. The range is only valid during the call
+ * of the {@link Handler}.
+ *
+ * @author Felix Eckert
+ */
+public class FrameDecoder {
+	public static final int MAX_FRAME_LENGTH = 65536;
+
+	private byte[] buffer = new byte[4096];
+	private int start = 0;   // Start of the first unparsed byte
+	private int end = 0;     // End of the received bytes
+	private int scanned = 0; // Position up to which legacy mode searched for LF
+	private boolean binary = false;
+
+	/**
+	 * Receives the decoded messages.
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		void frame(int type, byte[] data, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Switches between legacy lines and V2 frames, takes effect with
+	 * the next message, even within the same {@link FrameDecoder#feed} call.
+	 *
+	 * @param binary If V2 frames should be parsed
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+		this.scanned = start;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Feeds received bytes into the decoder.
+	 *
+	 * @param src     The received bytes
+	 * @param handler Receiver of all completed messages
+	 * @throws IOException If a message exceeds {@link FrameDecoder#MAX_FRAME_LENGTH} or the handler fails
+	 */
+	public void feed(ByteBuffer src, Handler handler) throws IOException {
+		int length = src.remaining();
+		ensureCapacity(length);
+		src.get(buffer, end, length);
+		end += length;
+		parse(handler);
+	}
+
+	/**
+	 * Feeds received bytes into the decoder.
+	 *
+	 * @see FrameDecoder#feed(ByteBuffer, Handler)
+	 */
+	public void feed(byte[] src, int offset, int length, Handler handler) throws IOException {
+		ensureCapacity(length);
+		System.arraycopy(src, offset, buffer, end, length);
+		end += length;
+		parse(handler);
+	}
+
+	private void parse(Handler handler) throws IOException {
+		while (start < end) {
+			if (binary) {
+				if (end - start < FrameCodec.HEADER_LENGTH) break;
+				int type = buffer[start] & 0xFF;
+				int length = ((buffer[start + 1] & 0xFF) << 24) | ((buffer[start + 2] & 0xFF) << 16)
+						| ((buffer[start + 3] & 0xFF) << 8) | (buffer[start + 4] & 0xFF);
+				if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Frame exceeds maximum length!");
+				if (end - start < FrameCodec.HEADER_LENGTH + length) break;
+
+				int offset = start + FrameCodec.HEADER_LENGTH;
+				start = offset + length;
+				scanned = start;
+				handler.frame(type, buffer, offset, length);
+			} else {
+				int lf = -1;
+				for (int i = Math.max(scanned, start); i < end; i++) {
+					if (buffer[i] == '\n') {
+						lf = i;
+						break;
+					}
+				}
+				if (lf == -1) {
+					scanned = end;
+					if (end - start > MAX_FRAME_LENGTH) throw new IOException("Line exceeds maximum length!");
+					break;
+				}
+
+				int offset = start;
+				start = lf + 1;
+				scanned = start;
+				handler.frame(FrameCodec.INPUT, buffer, offset, lf - offset);
+			}
+		}
+
+		// Compact
+		if (start == end) {
+			start = end = scanned = 0;
+		}
+	}
+
+	private void ensureCapacity(int length) {
+		if (end + length <= buffer.length) return;
+
+		// Move unparsed bytes to the front first, grow if that is not enough
+		int remaining = end - start;
+		byte[] target = remaining + length <= buffer.length ? buffer : new byte[Math.max(buffer.length * 2, remaining + length)];
+		System.arraycopy(buffer, start, target, 0, remaining);
+		scanned -= start;
+		end = remaining;
+		start = 0;
+		buffer = target;
+	}
+
+	/**
+	 * @return Amount of received bytes which are not part of a completed message yet
+	 */
+	public int pending() {
+		return end - start;
+	}
+}
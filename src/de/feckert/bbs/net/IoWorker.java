@@ -0,0 +1,181 @@
+package de.feckert.bbs.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An IoWorker owns a {@link Selector} and drives all {@link NioSession}s
+ * registered to it. Everything a session does (reading, running its
+ * protocol state machine, writing) happens on this thread; other threads
+ * only hand work over through the registration, flush and task queues.
+ *
+ * @author Felix Eckert
+ */
+class IoWorker implements Runnable {
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private final ConcurrentLinkedQueue<NioSession> registrations = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<NioSession> flushes       = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Runnable>   tasks         = new ConcurrentLinkedQueue<>();
+	// Sessions which wait for a write delay to pass, only touched by this thread
+	private final PriorityQueue<NioSession> paused = new PriorityQueue<>(Comparator.comparingLong(NioSession::getResumeAt));
+
+	IoWorker(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Hands a new session to this worker.
+	 */
+	void register(NioSession session) {
+		registrations.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Makes sure the queued output of a session is written.
+	 * Can be called from any thread.
+	 */
+	void requestFlush(NioSession session) {
+		if (isWorkerThread()) {
+			session.drain();
+			return;
+		}
+		flushes.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task of a session on this worker, an exception it throws only
+	 * closes that session. Can be called from any thread.
+	 */
+	void execute(NioSession session, Runnable task) {
+		tasks.add(() -> {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				fail(session, e);
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * @return If the calling thread is this worker
+	 */
+	boolean isWorkerThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Parks a session until its resume time has passed.
+	 */
+	void pause(NioSession session) {
+		paused.add(session);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(nextTimeout());
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			// Register new sessions
+			NioSession session;
+			while ((session = registrations.poll()) != null) {
+				try {
+					session.attach(selector);
+				} catch (ClosedChannelException e) {
+					session.close();
+				} catch (RuntimeException e) {
+					fail(session, e);
+				}
+			}
+
+			// Write output queued from other threads
+			while ((session = flushes.poll()) != null) {
+				try {
+					session.drain();
+				} catch (RuntimeException e) {
+					fail(session, e);
+				}
+			}
+
+			// Run tasks handed over by other threads
+			Runnable task;
+			while ((task = tasks.poll()) != null) task.run();
+
+			// Resume sessions whose write delay passed
+			long now = System.currentTimeMillis();
+			while (!paused.isEmpty() && paused.peek().getResumeAt() <= now) {
+				session = paused.poll();
+				try {
+					session.drain();
+				} catch (RuntimeException e) {
+					fail(session, e);
+				}
+			}
+
+			// Handle ready channels
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				session = (NioSession) key.attachment();
+
+				if (!key.isValid()) continue;
+				try {
+					if (key.isWritable()) session.drain();
+					if (key.isValid() && key.isReadable()) session.read();
+				} catch (RuntimeException e) {
+					fail(session, e);
+				}
+			}
+		}
+
+		// Close remaining channels
+		for (SelectionKey key : selector.keys()) ((NioSession) key.attachment()).close();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// A bug in the handling of one session must not stop the other sessions of this worker
+	private void fail(NioSession session, RuntimeException e) {
+		e.printStackTrace();
+		try {
+			session.fail(e);
+		} catch (RuntimeException closeFailure) {
+			closeFailure.printStackTrace();
+		}
+	}
+
+	private long nextTimeout() {
+		if (paused.isEmpty()) return 0;
+		return Math.max(1, paused.peek().getResumeAt() - System.currentTimeMillis());
+	}
+}
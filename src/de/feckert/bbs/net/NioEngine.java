@@ -0,0 +1,62 @@
+package de.feckert.bbs.net;
+
+import de.feckert.bbs.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+/**
+ * The NioEngine serves all connected clients from a small, fixed
+ * pool of {@link IoWorker}s instead of a thread per client. Accepted
+ * channels are distributed round-robin between the workers.
+ *
+ * @author Felix Eckert
+ */
+public class NioEngine {
+	private final Logger LOGGER;
+	private final IoWorker[] workers;
+	private int nextWorker = 0;
+
+	/**
+	 * @param ioThreads Amount of IO-Threads (and Selectors) to use
+	 * @throws IOException
+	 */
+	public NioEngine(int ioThreads) throws IOException {
+		this.LOGGER = Logger.create("JERAN:NIOE");
+		this.workers = new IoWorker[Math.max(1, ioThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new IoWorker("JERAN:NIO_" + i);
+		}
+	}
+
+	public void start() {
+		for (IoWorker worker : workers) worker.start();
+		LOGGER.infof("Started %s IO-Thread(s)!\n", workers.length);
+	}
+
+	/**
+	 * Creates a session for a freshly accepted channel, assigned to the
+	 * next IO-Thread. The session is handed to the IO-Thread once it is
+	 * started, see {@link NioSession#start()}.
+	 *
+	 * @param uuid    UUID for the User
+	 * @param channel The accepted channel
+	 * @return The session of the User
+	 * @throws IOException
+	 */
+	public NioSession create(UUID uuid, SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		IoWorker worker = workers[nextWorker];
+		nextWorker = (nextWorker + 1) % workers.length;
+		return new NioSession(uuid, channel, worker);
+	}
+
+	/**
+	 * Stops all IO-Threads, sessions should be disconnected beforehand.
+	 */
+	public void stop() {
+		for (IoWorker worker : workers) worker.shutdown();
+		LOGGER.info("Stopped IO-Threads!");
+	}
+}
@@ -0,0 +1,323 @@
+package de.feckert.bbs.net;
+
+import de.feckert.bbs.StaticText;
+import de.feckert.bbs.user.UserSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A UserSession which is served by an {@link IoWorker} using a
+ * non-blocking {@link SocketChannel}. Incoming bytes are split into
+ * messages and fed into the protocol state machine, outgoing frames are
+ * queued and written whenever the channel is writable. The session stops
+ * reading while the client does not take its output (see
+ * {@link de.feckert.bbs.user.FlushPolicy#getOutputLimit()}) or input it
+ * sent ahead waits to be handled.
+ *
+ * @author Felix Eckert
+ */
+public class NioSession extends UserSession {
+	private static final int MAX_READS = 16;
+
+	private final SocketChannel channel;
+	private final IoWorker worker;
+	private SelectionKey key;
+	private String ip;
+
+	// Input
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	private boolean readingStopped = false; // IO-Thread only
+	private boolean replayScheduled = false; // IO-Thread only
+
+	// Output, guarded by the queue as other sessions may write to us (msg)
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[16];
+	private int queuedBytes = 0;
+	private long resumeAt = 0;
+	private boolean closeRequested = false;
+
+	NioSession(UUID uuid, SocketChannel channel, IoWorker worker) throws IOException {
+		super(uuid);
+		this.channel = channel;
+		this.worker = worker;
+		this.ip = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().toString();
+	}
+
+	@Override
+	public void start() {
+		worker.register(this);
+	}
+
+	/**
+	 * Registers the channel with the workers selector and starts the
+	 * protocol. Called on the IO-Thread.
+	 */
+	void attach(Selector selector) throws ClosedChannelException {
+		this.key = channel.register(selector, SelectionKey.OP_READ, this);
+		begin();
+	}
+
+	/**
+	 * Reads all available bytes and hands every completed message to the
+	 * session. Called on the IO-Thread.
+	 */
+	void read() {
+		try {
+			// Pipelined input is read until the socket is empty (or the read limit
+			// is reached, to be fair to the other sessions) and answered in one batch
+			beginBatch();
+			int read = 0;
+			for (int i = 0; i < MAX_READS && (read = channel.read(readBuffer)) > 0; i++) {
+				readBuffer.flip();
+				decoder.feed(readBuffer, this::handleFrame);
+				readBuffer.clear();
+				if (disconnected || isOutputFull() || hasKeptInput()) break;
+			}
+			if (read == -1) {
+				SERVER.LOGGER.infof("Lost connection for user %s (IP: %s)\n", getName() + "(" + getUuid() + ")", getIP());
+				close();
+				return;
+			}
+			endBatch();
+			drain(); // Send everything the handled input produced
+			updateReading();
+		} catch (IOException e) {
+			SERVER.LOGGER.infof("Lost connection for user %s (IP: %s)\n", getName() + "(" + getUuid() + ")", getIP());
+			close();
+		}
+	}
+
+	/**
+	 * Writes queued output until the queue is empty, the socket buffer
+	 * is full or a write delay is reached. Called on the IO-Thread.
+	 */
+	void drain() {
+		if (key == null || !key.isValid()) return;
+		if (System.currentTimeMillis() < resumeAt) { // Drained again once the delay passed, not when writable
+			key.interestOps(readOps());
+			return;
+		}
+
+		try {
+			synchronized (queue) {
+				Chunk chunk;
+				while ((chunk = queue.peek()) != null) {
+					if (chunk.data == null) { // Write Delay
+						queue.poll();
+						resumeAt = System.currentTimeMillis() + chunk.delay;
+						key.interestOps(readOps()); // Writable sockets would wake the selector for the whole delay
+						worker.pause(this);
+						return;
+					}
+
+					// Gather all chunks up to the next delay into one write
+					int count = 0;
+					for (Chunk queued : queue) {
+						if (queued.data == null || count == gather.length) break;
+						gather[count++] = queued.data;
+					}
+					long written = channel.write(gather, 0, count);
+					Arrays.fill(gather, 0, count, null);
+					queuedBytes -= written;
+					countWrite(written);
+
+					while ((chunk = queue.peek()) != null && chunk.data != null && !chunk.data.hasRemaining()) queue.poll();
+					if (chunk != null && chunk.data != null) { // Socket buffer is full, wait until writable
+						key.interestOps(readOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			}
+
+			key.interestOps(readOps());
+			if (closeRequested) close();
+			else updateReading();
+		} catch (IOException e) {
+			SERVER.LOGGER.infof("Lost connection for user %s (IP: %s)\n", getName() + "(" + getUuid() + ")", getIP());
+			close();
+		}
+	}
+
+	/**
+	 * Stops reading while the client does not take its output or kept
+	 * input waits, and hands the kept input over once it can be handled.
+	 * Called on the IO-Thread.
+	 */
+	private void updateReading() {
+		if (key == null || !key.isValid()) return;
+
+		if (!replayScheduled && canReplayInput()) {
+			replayScheduled = true;
+			worker.execute(this, () -> {
+				replayScheduled = false;
+				replayInput();
+				updateReading();
+			});
+		}
+
+		boolean stop = isOutputFull() || hasKeptInput();
+		if (stop == readingStopped) return;
+		readingStopped = stop;
+		int ops = key.interestOps();
+		key.interestOps(stop ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+	}
+
+	private int readOps() {
+		return readingStopped ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Closes the channel immediately and terminates the session.
+	 * Can be called from any thread.
+	 */
+	void close() {
+		disconnected = true;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		terminate();
+	}
+
+	/**
+	 * Closes the session after its handling threw an unexpected exception.
+	 * Called on the IO-Thread.
+	 */
+	void fail(RuntimeException e) {
+		SERVER.LOGGER.errf("Closing session of user %s (IP: %s) after an internal error: %s\n",
+				getName() + "(" + getUuid() + ")", getIP(), e);
+		close();
+	}
+
+	long getResumeAt() {
+		return resumeAt;
+	}
+
+	@Override
+	protected void write(byte[] encoded) {
+		int unsent;
+		synchronized (queue) {
+			pending.write(encoded, 0, encoded.length);
+			unsent = pending.size() + queuedBytes;
+		}
+		checkDropLimit(unsent);
+	}
+
+	@Override
+	protected void write(StaticText.Frame frame) {
+		int unsent;
+		synchronized (queue) {
+			enqueuePending();
+			queue.add(new Chunk(frame.buffer(), 0));
+			queuedBytes += frame.bytes().length;
+			unsent = pending.size() + queuedBytes;
+		}
+		checkDropLimit(unsent);
+	}
+
+	@Override
+	protected void flush() {
+		synchronized (queue) {
+			enqueuePending();
+		}
+		if (key != null) worker.requestFlush(this);
+	}
+
+	// Lock on queue has to be held
+	private void enqueuePending() {
+		if (pending.size() == 0) return;
+		ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+		queue.add(new Chunk(data, 0));
+		queuedBytes += data.remaining();
+		pending.reset();
+	}
+
+	@Override
+	protected void flushWithin(int millis) {
+		// Output written on the IO-Thread is drained once the current input is handled
+		if (!worker.isWorkerThread()) flush();
+	}
+
+	@Override
+	protected int buffered() {
+		synchronized (queue) {
+			return pending.size() + queuedBytes;
+		}
+	}
+
+	@Override
+	protected int unsent() {
+		return buffered();
+	}
+
+	/**
+	 * Runs the task on a later turn of the IO-Thread, so it never runs
+	 * from within a drain.
+	 */
+	@Override
+	protected void runInSession(Runnable task) {
+		worker.execute(this, () -> {
+			task.run();
+			updateReading();
+		});
+	}
+
+	@Override
+	protected void pace(int delay) {
+		if (delay <= 0) return;
+		synchronized (queue) {
+			queue.add(new Chunk(null, delay));
+		}
+		if (key != null) worker.requestFlush(this);
+	}
+
+	@Override
+	protected void closeConnection() {
+		closeRequested = true;
+		worker.requestFlush(this);
+	}
+
+	@Override
+	protected void abortConnection() {
+		close();
+	}
+
+	@Override
+	protected boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	/**
+	 * @return The users IP
+	 * */
+	@Override
+	public String getIP() {
+		return ip;
+	}
+
+	/**
+	 * Queued output, either bytes to be written or a write delay.
+	 */
+	private static class Chunk {
+		final ByteBuffer data;
+		final int delay;
+
+		Chunk(ByteBuffer data, int delay) {
+			this.data = data;
+			this.delay = delay;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package de.feckert.bbs.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-GCM cipher for the frames of a session using the hybrid encryption
+ * (capability "aes"). The AES key is generated by the client and sent
+ * wrapped with the RSA public key of the session, afterwards every frame
+ * is sealed with it.
+ * <p>
+ * Nonces are not transmitted. Each direction counts its frames and uses
+ * a direction byte followed by the counter as nonce, so a key is never
+ * used twice with the same nonce and reordered or replayed frames fail
+ * the authentication.
+ * <p>
+ * Not thread-safe, the caller has to keep the order of the frames.
+ *
+ * @author Felix Eckert
+ */
+public class FrameCipher {
+	public static final int KEY_SIZE = 256;
+	public static final int TAG_LENGTH = 128;
+
+	private static final byte SERVER_TO_CLIENT = 'S';
+	private static final byte CLIENT_TO_SERVER = 'C';
+
+	private final SecretKey key;
+	private final Cipher encryptCipher;
+	private final Cipher decryptCipher;
+	private final byte encryptDirection;
+	private final byte decryptDirection;
+	private long encryptCounter = 0;
+	private long decryptCounter = 0;
+
+	/**
+	 * @param key    The AES session key
+	 * @param server If this is the servers end of the connection
+	 * @throws GeneralSecurityException If AES-GCM is not available
+	 */
+	public FrameCipher(SecretKey key, boolean server) throws GeneralSecurityException {
+		this.key = key;
+		this.encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.encryptDirection = server ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+		this.decryptDirection = server ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+	}
+
+	/**
+	 * @return A new random AES session key
+	 * @throws GeneralSecurityException If AES is not available
+	 */
+	public static SecretKey generateKey() throws GeneralSecurityException {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(KEY_SIZE);
+		return generator.generateKey();
+	}
+
+	/**
+	 * @param encoded The raw key as sent by the client
+	 * @return The AES session key
+	 */
+	public static SecretKey decodeKey(byte[] encoded) {
+		if (encoded.length * 8 != KEY_SIZE) throw new IllegalArgumentException("Invalid session key length!");
+		return new SecretKeySpec(encoded, "AES");
+	}
+
+	/**
+	 * Seals the next outgoing frame(s).
+	 *
+	 * @return Cipher text followed by the authentication tag
+	 */
+	public byte[] encrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+		encryptCipher.init(Cipher.ENCRYPT_MODE, key, nonce(encryptDirection, encryptCounter++));
+		return encryptCipher.doFinal(data, offset, length);
+	}
+
+	/**
+	 * Opens the next incoming frame(s).
+	 *
+	 * @return The plain frame(s)
+	 * @throws javax.crypto.AEADBadTagException If the frame was modified, replayed or reordered
+	 */
+	public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+		decryptCipher.init(Cipher.DECRYPT_MODE, key, nonce(decryptDirection, decryptCounter++));
+		return decryptCipher.doFinal(data, offset, length);
+	}
+
+	private static GCMParameterSpec nonce(byte direction, long counter) {
+		byte[] nonce = new byte[12];
+		nonce[0] = direction;
+		for (int i = 0; i < 8; i++) nonce[11 - i] = (byte) (counter >>> (i * 8));
+		return new GCMParameterSpec(TAG_LENGTH, nonce);
+	}
+}
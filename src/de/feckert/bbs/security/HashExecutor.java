@@ -0,0 +1,165 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the password hashing of the {@link Verifier} on a fixed amount
+ * of threads, so a login storm can not use more cores than configured.
+ * <p>
+ * Tasks are queued per source (the IP of the user) and the sources are
+ * served round robin, a single IP with many connections can not delay
+ * everyone else. If the queue limit of the executor or of the source
+ * is reached the task is rejected and the user is asked to retry.
+ * <p>
+ * The time spent waiting and hashing is recorded in the {@link Metrics}
+ * histograms verifier.hash.wait and verifier.hash.run (milliseconds),
+ * the queue depth at submission in verifier.hash.queue.
+ *
+ * @author Felix Eckert
+ */
+public class HashExecutor {
+	private final Logger LOGGER;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	// Queued tasks per source, the first source is served next
+	private final LinkedHashMap<String, ArrayDeque<Task>> queues = new LinkedHashMap<>();
+	private final int queueLimit;
+	private final int sourceLimit;
+	private int queued = 0;
+	private boolean running = true;
+	private final Thread[] workers;
+
+	/**
+	 * @param threads     Amount of hashing threads
+	 * @param queueLimit  Maximum amount of waiting tasks
+	 * @param sourceLimit Maximum amount of waiting tasks per source
+	 */
+	public HashExecutor(int threads, int queueLimit, int sourceLimit) {
+		this.LOGGER = Logger.create("JERAN:HASH");
+		this.queueLimit = Math.max(1, queueLimit);
+		this.sourceLimit = Math.max(1, sourceLimit);
+		this.workers = new Thread[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(this::work, "JERAN:HASH_" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		LOGGER.infof("Started HashExecutor with %s thread(s), queue limit %s (%s per source)!\n",
+				workers.length, this.queueLimit, this.sourceLimit);
+	}
+
+	/**
+	 * Queues a task.
+	 *
+	 * @param source The source of the task, usually an IP
+	 * @param task   The task
+	 * @return If the task was accepted, false if the executor is saturated
+	 */
+	public boolean submit(String source, Runnable task) {
+		lock.lock();
+		try {
+			ArrayDeque<Task> queue = queues.get(source);
+			if (!running || queued >= queueLimit || (queue != null && queue.size() >= sourceLimit)) {
+				Metrics.increment("verifier.hash.rejected");
+				return false;
+			}
+
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				queues.put(source, queue);
+			}
+			queue.add(new Task(task));
+			queued++;
+			Metrics.histogram("verifier.hash.queue").record(queued);
+			available.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Amount of waiting tasks
+	 */
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void stop() {
+		lock.lock();
+		try {
+			running = false;
+			queues.clear();
+			queued = 0;
+		} finally {
+			lock.unlock();
+		}
+		for (Thread worker : workers) worker.interrupt();
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				Task task = next();
+				long start = System.currentTimeMillis();
+				Metrics.histogram("verifier.hash.wait").record(start - task.queuedAt);
+				try {
+					task.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				Metrics.histogram("verifier.hash.run").record(System.currentTimeMillis() - start);
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	// Takes a task of the first source and moves the source to the back
+	private Task next() throws InterruptedException {
+		lock.lock();
+		try {
+			while (queued == 0) available.await();
+
+			Iterator<Map.Entry<String, ArrayDeque<Task>>> iterator = queues.entrySet().iterator();
+			Map.Entry<String, ArrayDeque<Task>> first = iterator.next();
+			iterator.remove();
+
+			Task task = first.getValue().poll();
+			queued--;
+			if (!first.getValue().isEmpty()) queues.put(first.getKey(), first.getValue());
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s task(s) queued, %s thread(s), %s rejected",
+				getQueued(), workers.length, Metrics.get("verifier.hash.rejected"));
+	}
+
+	private static class Task {
+		final Runnable task;
+		final long queuedAt = System.currentTimeMillis();
+
+		Task(Runnable task) {
+			this.task = task;
+		}
+	}
+}
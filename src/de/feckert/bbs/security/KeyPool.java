@@ -0,0 +1,190 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Metrics;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Pool of pre-generated RSA key pairs for the end to end encryption of
+ * user sessions. A low priority background thread keeps the pool filled
+ * up to the watermark, logins take a pair from the pool. If the pool is
+ * empty (e.g. during a burst of reconnects) the pair is generated by one
+ * of {@link KeyPool#MISS_THREADS} threads of normal priority and handed
+ * to a callback, so no session or IO-Thread ever generates a key itself.
+ * The pool is not filled while such requests are waiting or served.
+ * <p>
+ * Hits and misses are counted in the {@link Metrics} as
+ * keypool.hit and keypool.miss.
+ *
+ * @author Felix Eckert
+ */
+public class KeyPool {
+	public static final int KEY_SIZE = 2048;
+	public static final int MISS_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()));
+
+	private final Logger LOGGER;
+	private final ArrayBlockingQueue<KeyPair> pool;
+	private final ConcurrentLinkedQueue<Consumer<KeyPair>> requests = new ConcurrentLinkedQueue<>();
+	private final Object signal = new Object(); // Wakes the threads of the pool
+	private final int watermark;
+	private int serving = 0; // Requests being generated, guarded by signal
+	private volatile boolean failed = false;
+	private Thread[] workers;
+
+	/**
+	 * @param watermark Amount of key pairs to keep ready, 0 disables the pool
+	 */
+	public KeyPool(int watermark) {
+		this.LOGGER = Logger.create("JERAN:KEYS");
+		this.watermark = Math.max(0, watermark);
+		this.pool = new ArrayBlockingQueue<>(Math.max(1, this.watermark));
+	}
+
+	/**
+	 * Starts the threads of the pool, the low priority thread filling the
+	 * pool is left out if the pool is disabled.
+	 */
+	public void start() {
+		if (workers != null) return;
+		workers = new Thread[MISS_THREADS + (watermark > 0 ? 1 : 0)];
+		for (int i = 0; i < MISS_THREADS; i++) {
+			workers[i] = new Thread(this::serve, "JERAN:KEYS_" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		if (watermark > 0) {
+			Thread filler = new Thread(this::fill, "JERAN:KEYS_FILL");
+			filler.setDaemon(true);
+			filler.setPriority(Thread.MIN_PRIORITY);
+			filler.start();
+			workers[MISS_THREADS] = filler;
+			LOGGER.infof("Started KeyPool with a watermark of %s key pair(s)!\n", watermark);
+		}
+	}
+
+	public void stop() {
+		if (workers != null) {
+			for (Thread worker : workers) worker.interrupt();
+		}
+		workers = null;
+		pool.clear();
+		requests.clear();
+	}
+
+	/**
+	 * Takes a key pair from the pool.
+	 *
+	 * @return A fresh key pair, NULL if the pool is empty
+	 */
+	public KeyPair poll() {
+		KeyPair pair = pool.poll();
+		if (pair == null) return null;
+
+		Metrics.increment("keypool.hit");
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+		return pair;
+	}
+
+	/**
+	 * Generates a key pair on a thread of the pool, to be used if
+	 * {@link KeyPool#poll()} found the pool empty.
+	 *
+	 * @param callback Receives the key pair on a thread of the pool, NULL if RSA is not available
+	 */
+	public void generate(Consumer<KeyPair> callback) {
+		if (watermark > 0) Metrics.increment("keypool.miss");
+		if (failed) {
+			callback.accept(null);
+			return;
+		}
+		synchronized (signal) {
+			requests.add(callback);
+			signal.notifyAll();
+		}
+	}
+
+	/**
+	 * @return Amount of key pairs ready to be taken
+	 */
+	public int getAvailable() {
+		return pool.size();
+	}
+
+	// Requests of empty pool hits, served at normal priority
+	private void serve() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Consumer<KeyPair> request;
+				synchronized (signal) {
+					while ((request = requests.poll()) == null) signal.wait();
+					serving++;
+				}
+
+				try {
+					request.accept(generateOrNull());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (signal) {
+						serving--;
+						signal.notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	// Fills the pool while nobody waits for a key pair
+	private void fill() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				synchronized (signal) {
+					while (!requests.isEmpty() || serving > 0 || pool.size() >= watermark) signal.wait();
+				}
+
+				KeyPair pair = generateOrNull();
+				if (pair == null) return;
+				pool.offer(pair);
+				Metrics.increment("keypool.generated");
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	private KeyPair generateOrNull() {
+		if (failed) return null;
+		try {
+			return generate();
+		} catch (NoSuchAlgorithmException e) {
+			if (!failed) {
+				failed = true;
+				LOGGER.err("RSA is not available, KeyPool stopped!");
+				e.printStackTrace();
+			}
+			return null;
+		}
+	}
+
+	private static KeyPair generate() throws NoSuchAlgorithmException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(KEY_SIZE);
+		return generator.generateKeyPair();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s/%s key pair(s) ready, %s hit(s), %s miss(es)",
+				pool.size(), watermark, Metrics.get("keypool.hit"), Metrics.get("keypool.miss"));
+	}
+}
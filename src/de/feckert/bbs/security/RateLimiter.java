@@ -0,0 +1,166 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Metrics;
+import de.gansgruppe.formats.LST;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often a session and an IP may use expensive or spammable
+ * commands, using a token bucket per {@link Limit} for each of them.
+ * A command is only run if both the bucket of its session and of its IP
+ * hold a token.
+ * <p>
+ * Buckets are refilled lazily when they are used and kept in a single map
+ * with one entry per IP or session, entries which have been idle for the
+ * configured time and are full again are evicted. Rejections are counted
+ * in the {@link Metrics} as ratelimit.rejected.&lt;limit&gt;.
+ * <p>
+ * The limits are read from the class RATE_LIMIT of the configuration,
+ * e.g. LOGIN_SESSION_RATE (tokens per minute) and LOGIN_SESSION_BURST
+ * (size of the bucket). A rate of 0 disables the limit.
+ *
+ * @author Felix Eckert
+ */
+public class RateLimiter {
+	/**
+	 * The command classes which are limited.
+	 */
+	public enum Limit {
+		LOGIN, CREATE, POST, MSG
+	}
+
+	private static final Limit[] LIMITS = Limit.values();
+
+	private final Logger LOGGER;
+	private final ConcurrentHashMap<Object, Buckets> buckets = new ConcurrentHashMap<>();
+	private final double[] sessionRate = new double[LIMITS.length]; // Tokens per millisecond
+	private final double[] sessionBurst = new double[LIMITS.length];
+	private final double[] ipRate = new double[LIMITS.length];
+	private final double[] ipBurst = new double[LIMITS.length];
+	private final long idleEviction;
+	private final AtomicLong nextEviction;
+
+	public RateLimiter(LST config) {
+		this.LOGGER = Logger.create("JERAN:RATE");
+		for (Limit limit : LIMITS) {
+			int i = limit.ordinal();
+			sessionRate[i]  = config.getInteger("RATE_LIMIT", limit + "_SESSION_RATE") / 60000d;
+			sessionBurst[i] = Math.max(1, config.getInteger("RATE_LIMIT", limit + "_SESSION_BURST"));
+			ipRate[i]       = config.getInteger("RATE_LIMIT", limit + "_IP_RATE") / 60000d;
+			ipBurst[i]      = Math.max(1, config.getInteger("RATE_LIMIT", limit + "_IP_BURST"));
+		}
+		this.idleEviction = config.getLong("RATE_LIMIT", "IDLE_EVICTION") * 1000;
+		this.nextEviction = new AtomicLong(System.currentTimeMillis() + idleEviction);
+		LOGGER.info("Rate limits loaded!");
+	}
+
+	/**
+	 * Takes a token of the limit from the buckets of the session and the IP.
+	 *
+	 * @param limit   The limit of the command
+	 * @param ip      IP of the session
+	 * @param session UUID of the session
+	 * @return 0 if the command may run, else the milliseconds until it may run again
+	 */
+	public long acquire(Limit limit, String ip, Object session) {
+		long now = System.currentTimeMillis();
+		evictIdle(now);
+
+		int i = limit.ordinal();
+		Buckets sessionBuckets = sessionRate[i] > 0 ? buckets(session, sessionRate, sessionBurst, now) : null;
+		Buckets ipBuckets = ipRate[i] > 0 ? buckets(ip, ipRate, ipBurst, now) : null;
+
+		long wait = sessionBuckets == null ? 0 : sessionBuckets.take(i, now);
+		if (wait == 0 && ipBuckets != null) {
+			wait = ipBuckets.take(i, now);
+			if (wait != 0 && sessionBuckets != null) sessionBuckets.refund(i);
+		}
+
+		if (wait != 0) {
+			Metrics.increment("ratelimit.rejected");
+			Metrics.increment("ratelimit.rejected." + limit.name().toLowerCase());
+		}
+		return wait;
+	}
+
+	/**
+	 * @return Amount of IPs and sessions with buckets
+	 */
+	public int getTracked() {
+		return buckets.size();
+	}
+
+	private Buckets buckets(Object key, double[] rate, double[] burst, long now) {
+		Buckets b = buckets.get(key);
+		if (b == null) b = buckets.computeIfAbsent(key, (k) -> new Buckets(rate, burst, now));
+		return b;
+	}
+
+	// Drops buckets which have been idle long enough to be full again
+	private void evictIdle(long now) {
+		long next = nextEviction.get();
+		if (now < next || !nextEviction.compareAndSet(next, now + idleEviction)) return;
+
+		long idleSince = now - idleEviction;
+		buckets.values().removeIf((b) -> b.isIdle(idleSince));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s IP(s)/session(s) tracked, %s rejected",
+				buckets.size(), Metrics.get("ratelimit.rejected"));
+	}
+
+	/**
+	 * The buckets of one IP or session, one per {@link Limit}.
+	 */
+	private static class Buckets {
+		private final double[] rate;
+		private final double[] burst;
+		private final double[] tokens = new double[LIMITS.length];
+		private final long[] refilled = new long[LIMITS.length];
+		private long lastUsed;
+
+		Buckets(double[] rate, double[] burst, long now) {
+			this.rate = rate;
+			this.burst = burst;
+			this.lastUsed = now;
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i] = burst[i];
+				refilled[i] = now;
+			}
+		}
+
+		synchronized long take(int i, long now) {
+			lastUsed = now;
+			refill(i, now);
+			if (tokens[i] >= 1) {
+				tokens[i] -= 1;
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((1 - tokens[i]) / rate[i]));
+		}
+
+		synchronized void refund(int i) {
+			tokens[i] += 1;
+		}
+
+		synchronized boolean isIdle(long idleSince) {
+			if (lastUsed > idleSince) return false;
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < tokens.length; i++) {
+				refill(i, now);
+				if (tokens[i] < burst[i]) return false;
+			}
+			return true;
+		}
+
+		private void refill(int i, long now) {
+			tokens[i] = Math.min(burst[i], tokens[i] + (now - refilled[i]) * rate[i]);
+			refilled[i] = now;
+		}
+	}
+}
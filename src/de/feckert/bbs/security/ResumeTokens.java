@@ -0,0 +1,199 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Metrics;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues and checks resumption tokens, which let a user verify again
+ * after a reconnect ("verify resume &lt;token&gt;") without the password.
+ * Checking a token costs a HMAC instead of a PBKDF2 hash.
+ * <p>
+ * A token holds the Public-Key of the {@link UserVerifier}, its expiry and
+ * a random id, signed with HMAC-SHA256 (truncated to 128 bits). Only the
+ * token issued last for an account is valid, so every login with the
+ * password revokes the token issued before it. Tokens are single use,
+ * resuming revokes the token and the session gets a new one.
+ * <p>
+ * A token is as good as the password, so it is only issued to sessions
+ * whose output is sealed by a {@link FrameCipher} (hybrid aes). Legacy and
+ * RSA-only sessions send their output in the clear.
+ * <p>
+ * The HMAC key is generated at startup and, like the current token of
+ * every account, only held in memory, so a restart invalidates all tokens
+ * instead of forgetting which of them were revoked.
+ *
+ * @author Felix Eckert
+ */
+public class ResumeTokens {
+	private static final int PAYLOAD_LENGTH = 32; // Public-Key (16), expiry (8), id (8)
+	private static final int MAC_LENGTH = 16;
+
+	private final Logger LOGGER;
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final SecureRandom random = new SecureRandom();
+	private final long lifetime;
+
+	// Current token of every account by its Public-Key, expired tokens are pruned
+	private final ConcurrentHashMap<UUID, Issued> current = new ConcurrentHashMap<>();
+	private volatile int pruneAt = 1024;
+
+	/**
+	 * @param lifetime Seconds a token is valid, 0 disables resumption
+	 */
+	public ResumeTokens(long lifetime) {
+		this.LOGGER = Logger.create("JERAN:RSME");
+		this.lifetime = Math.max(0, lifetime) * 1000;
+
+		byte[] secret = new byte[32];
+		random.nextBytes(secret);
+		this.key = new SecretKeySpec(secret, "HmacSHA256");
+		this.macs = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		if (isEnabled()) LOGGER.infof("Issuing resume tokens valid for %s second(s)!\n", this.lifetime / 1000);
+	}
+
+	public boolean isEnabled() {
+		return lifetime > 0;
+	}
+
+	/**
+	 * Issues a new token for an account, which revokes the one issued
+	 * before.
+	 *
+	 * @param verifier The verifier the user logged in with
+	 * @param sealed   If the output of the session is encrypted, else the
+	 *                 earlier token is only revoked
+	 * @return A new token for the verifier, NULL if resumption is disabled or the output is not sealed
+	 */
+	public String issue(UserVerifier verifier, boolean sealed) {
+		if (!isEnabled()) return null;
+
+		UUID pk = UUID.fromString(verifier.getUuid());
+		if (!sealed) {
+			current.remove(pk);
+			return null;
+		}
+
+		ByteBuffer token = ByteBuffer.allocate(PAYLOAD_LENGTH + MAC_LENGTH);
+		Issued issued = new Issued(random.nextLong(), System.currentTimeMillis() + lifetime);
+		token.putLong(pk.getMostSignificantBits()).putLong(pk.getLeastSignificantBits());
+		token.putLong(issued.expiry);
+		token.putLong(issued.id);
+		token.put(sign(token.array()));
+		current.put(pk, issued);
+		prune();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+	}
+
+	/**
+	 * Checks a token and revokes it.
+	 *
+	 * @return The verifier of the token, NULL if it is invalid, expired or revoked
+	 */
+	public UserVerifier resume(String token) {
+		ByteBuffer payload = check(token);
+		if (payload == null || !revoke(payload)) {
+			Metrics.increment("resume.rejected");
+			return null;
+		}
+
+		UserVerifier verifier = Verifier.getByPublicKey(new UUID(payload.getLong(0), payload.getLong(8)).toString());
+		Metrics.increment(verifier == null ? "resume.rejected" : "resume.accepted");
+		return verifier;
+	}
+
+	/**
+	 * Revokes a token, e.g. when the user logs out.
+	 */
+	public void revoke(String token) {
+		ByteBuffer payload = check(token);
+		if (payload != null) revoke(payload);
+	}
+
+	// Revokes the token if it is the current one of its account, false if it was not
+	private boolean revoke(ByteBuffer payload) {
+		UUID pk = new UUID(payload.getLong(0), payload.getLong(8));
+		return current.remove(pk, new Issued(payload.getLong(24), payload.getLong(16)));
+	}
+
+	// Decodes a token and checks its signature and expiry
+	private ByteBuffer check(String token) {
+		if (!isEnabled() || token == null) return null;
+
+		byte[] raw;
+		try {
+			raw = Base64.getUrlDecoder().decode(token);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (raw.length != PAYLOAD_LENGTH + MAC_LENGTH) return null;
+
+		byte[] payload = Arrays.copyOf(raw, PAYLOAD_LENGTH);
+		byte[] mac = Arrays.copyOfRange(raw, PAYLOAD_LENGTH, raw.length);
+		if (!MessageDigest.isEqual(sign(payload), mac)) return null;
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		return buffer.getLong(16) > System.currentTimeMillis() ? buffer : null;
+	}
+
+	private byte[] sign(byte[] data) {
+		Mac mac = macs.get();
+		mac.update(data, 0, PAYLOAD_LENGTH);
+		return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+	}
+
+	private void prune() {
+		if (current.size() < pruneAt) return;
+		long now = System.currentTimeMillis();
+		current.values().removeIf((issued) -> issued.expiry <= now);
+		pruneAt = Math.max(1024, current.size() * 2);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s valid token(s), %s resumed, %s rejected",
+				current.size(), Metrics.get("resume.accepted"), Metrics.get("resume.rejected"));
+	}
+
+	/**
+	 * Id and expiry of the current token of an account.
+	 */
+	private static class Issued {
+		final long id;
+		final long expiry;
+
+		Issued(long id, long expiry) {
+			this.id = id;
+			this.expiry = expiry;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Issued && ((Issued) o).id == id && ((Issued) o).expiry == expiry;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id);
+		}
+	}
+}
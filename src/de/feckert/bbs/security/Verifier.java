@@ -1,46 +1,95 @@
 package de.feckert.bbs.security;
 
 import de.feckert.bbs.Logger;
+import de.feckert.bbs.Threads;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import java.io.*;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Used to create new UserVerifiers and for Logging-In to a User-Verifier.
  * Passwords are encrypted using "PBKDF2WithHmacSHA1" and a 16-byte salt.
  * <p>
- * The VERIFIER-DATABASE is stored in a configurable file as a java-object
- * with the file extension ".hmdb" (Hash-Map Database).
+ * The VERIFIER-DATABASE is stored in a {@link VerifierLog} (snapshot and
+ * append-only log), which is compacted in the background. Databases in the
+ * old ".hmdb" format (Hash-Map Database) are migrated once on load.
+ * Verifiers are indexed by their name (primary key) and by their Public-Key
+ * (secondary key), a login is a single lookup and one hash. Only verifiers
+ * created since the last compaction are held in memory, the others are
+ * looked up in the memory-mapped {@link VerifierIndex} of the snapshot.
+ * <p>
+ * Sessions hash through {@link Verifier#verifyAsync} and {@link Verifier#createVerifierAsync},
+ * which run on the bounded {@link HashExecutor}.
  *
  * @author Felix Eckert
  */
 public class Verifier {
 	private static final Logger VERIFIER_LOGGER = Logger.create("JERAN:VERI");
 
-	private static HashMap<String[], String[]> VERIFIER_DB = new HashMap<>();
+	// Verifiers which are not in the snapshot of the STORE yet
+	private static final ConcurrentHashMap<String, Entry> BY_NAME = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Entry> BY_PK = new ConcurrentHashMap<>();
+	private static VerifierLog STORE;
+	private static ScheduledExecutorService COMPACTION_EXECUTOR;
+	private static ScheduledFuture<?> COMPACTION_SERVICE;
 	public static File DB_PATH;
+	public static File STORE_PATH;
+	public static HashExecutor EXECUTOR;
 
 	/**
-	 * Creates a new User-Verifier and stores it to the VERIFIER_DB.
+	 * Creates a new User-Verifier on the {@link Verifier#EXECUTOR}.
+	 *
+	 * @param source   Source of the request (IP) for fair queuing
+	 * @param name     The User-Name for the Verifier
+	 * @param password The Password for the Verifier
+	 * @param callback Receives the result of {@link Verifier#createVerifier} on the hashing thread
+	 * @return If the request was accepted, false if the server is too busy
+	 */
+	public static boolean createVerifierAsync(String source, String name, String password, Consumer<UserVerifier> callback) {
+		return EXECUTOR.submit(source, () -> callback.accept(createVerifier(name, password)));
+	}
+
+	/**
+	 * Verifies User-Verifier credentials on the {@link Verifier#EXECUTOR}.
+	 *
+	 * @param source   Source of the request (IP) for fair queuing
+	 * @param uname    The Username to be verified
+	 * @param password The Password to be verified
+	 * @param callback Receives the result of {@link Verifier#verify} on the hashing thread
+	 * @return If the request was accepted, false if the server is too busy
+	 */
+	public static boolean verifyAsync(String source, String uname, String password, Consumer<UserVerifier> callback) {
+		return EXECUTOR.submit(source, () -> callback.accept(verify(uname, password)));
+	}
+
+	/**
+	 * Creates a new User-Verifier and appends it to the {@link VerifierLog}.
 	 * The Public-Key is auto-generated.
 	 *
 	 * @param name     The User-Name for the Verifier
 	 * @param password The Password for the Verifier
+	 * @return The new Verifier, NULL if the name is taken or hashing failed
 	 */
-	public static void createVerifier(String name, String password) {
+	public static UserVerifier createVerifier(String name, String password) {
+		if (findByName(name) != null) return null;
 		VERIFIER_LOGGER.info("Creating new UserVerifier!");
 
-		String[] keys = new String[2];
-		String[] values = new String[2];
-
 		// Encrypt Password
 		SecureRandom random = new SecureRandom();
 		byte[] salt = new byte[16];
@@ -48,28 +97,34 @@ public class Verifier {
 
 		byte[] hash;
 		try {
-			KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
-			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-
-			hash = factory.generateSecret(spec).getEncoded();
+			hash = hash(password, salt);
 		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
 			VERIFIER_LOGGER.err("Failed to hash new private key!");
 			e.printStackTrace();
-			return;
+			return null;
 		}
 
-		// Write Data
-		keys[0] = Base64.getEncoder().encodeToString(hash);
-		keys[1] = Base64.getEncoder().encodeToString(salt);
-		while (ensureNonDuplicatePK(values[0])) {
-			values[0] = UUID.randomUUID().toString();
-		} // Create Public Key & Make Sure its not duplicate
-		values[1] = name;
-
 		// Save to DB & Save the DB
-		VERIFIER_DB.put(keys, values);
-		VERIFIER_LOGGER.info("Registered new UserVerifier to Database!");
-		saveDataBase();
+		synchronized (Verifier.class) {
+			if (findByName(name) != null) return null; // Taken while hashing
+
+			String pk = null;
+			while (ensureNonDuplicatePK(pk)) {
+				pk = UUID.randomUUID().toString();
+			} // Create Public Key & Make Sure its not duplicate
+
+			Entry entry = new Entry(name, pk, hash, salt);
+			try {
+				STORE.append(entry);
+			} catch (IOException e) {
+				VERIFIER_LOGGER.err("Failed to store new UserVerifier!");
+				e.printStackTrace();
+				return null;
+			}
+			index(entry);
+			VERIFIER_LOGGER.info("Registered new UserVerifier to Database!");
+			return new UserVerifier(name, pk);
+		}
 	}
 
 	/**
@@ -81,85 +136,159 @@ public class Verifier {
 	 * @return A UserVerifier object containing the information matching to the given credentials, NULL if invalid
 	 */
 	public static UserVerifier verify(String uname, String password) {
-		UserVerifier[] verifier = {null};
+		Entry entry = findByName(uname);
+		if (entry == null) return null;
 
-		// Setup KeyFactory
-		SecretKeyFactory factory;
 		try {
-			factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-		} catch (NoSuchAlgorithmException e) {
-			VERIFIER_LOGGER.err("Failed to Verify! NSAE thrown!");
+			// Hash the given Password to be able to compare
+			byte[] nhash = hash(password, entry.salt);
+			if (!MessageDigest.isEqual(entry.hash, nhash)) return null;
+		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+			VERIFIER_LOGGER.err("Failed to Verify! " + e.getClass().getSimpleName() + " thrown!");
 			e.printStackTrace();
 			return null;
 		}
 
-		// Verify Credentials here
-		VERIFIER_DB.forEach((k, v) -> {
-			String nm = v[1];
-			if (nm.matches(uname)) {
-				try {
-					// Copy Credentials from database and decode from B64
-					byte[] hash = Base64.getDecoder().decode(k[0]);
-					byte[] salt = Base64.getDecoder().decode(k[1]);
-					KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
-
-					// Hash the given Password to be able to compare
-					byte[] nhash = factory.generateSecret(spec).getEncoded();
-					boolean verified = false;
-					if (hash.length == nhash.length) {
-						verified = true;
-						for (int i = 0; i < hash.length; i++) { // Compare bytes of the hash
-							if (hash[i] != nhash[i]) verified = false;
-						}
-					}
-
-					if (verified) {
-						verifier[0] = new UserVerifier(nm, v[0]); // Create User-Verifier
-					}
-				} catch (InvalidKeySpecException e) {
-					VERIFIER_LOGGER.err("Failed to Verify! IKSE thrown!");
-					e.printStackTrace();
-				}
-			}
-		});
-
-		return verifier[0];
+		return new UserVerifier(entry.name, entry.pk); // Create User-Verifier
 	}
 
 	/**
-	 * Saves the Database to file specified in the field {@link de.feckert.bbs.security.Verifier#DB_PATH}.
+	 * @param pk Public-Key of a Verifier
+	 * @return The Verifier with the Public-Key, NULL if there is none
 	 */
-	public static void saveDataBase() {
+	public static UserVerifier getByPublicKey(String pk) {
+		Entry entry = findByPublicKey(pk);
+		return entry == null ? null : new UserVerifier(entry.name, entry.pk);
+	}
+
+	private static Entry findByName(String name) {
+		Entry entry = BY_NAME.get(name);
+		if (entry != null) return entry;
 		try {
-			FileOutputStream fileOut = new FileOutputStream(DB_PATH.getAbsolutePath());
-			ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-			objectOut.writeObject(VERIFIER_DB);
-			objectOut.close();
-			VERIFIER_LOGGER.info("Backed-Up VERIFIER_DB!");
+			return STORE.findByName(name);
 		} catch (IOException e) {
-			VERIFIER_LOGGER.err("Failed to backup VERIFIER_DB!");
+			VERIFIER_LOGGER.err("Failed to read VERIFIER_DB!");
 			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static Entry findByPublicKey(String pk) {
+		Entry entry = BY_PK.get(pk);
+		if (entry != null) return entry;
+		try {
+			return STORE.findByPublicKey(pk);
+		} catch (IOException e) {
+			VERIFIER_LOGGER.err("Failed to read VERIFIER_DB!");
+			e.printStackTrace();
+			return null;
 		}
 	}
 
+	private static byte[] hash(String password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+		return factory.generateSecret(spec).getEncoded();
+	}
+
 	/**
-	 * Loads the Database from file specified in the field {@link de.feckert.bbs.security.Verifier#DB_PATH}.
+	 * Loads the Database from the {@link VerifierLog} at {@link de.feckert.bbs.security.Verifier#STORE_PATH}.
+	 * If there is none yet the old database at {@link de.feckert.bbs.security.Verifier#DB_PATH}
+	 * is migrated into it and renamed to ".migrated".
 	 */
-	@SuppressWarnings("unchecked")
-	public static void loadVerifierDB() {
+	public static synchronized void loadVerifierDB() {
+		if (STORE != null) STORE.close();
+		STORE = new VerifierLog(STORE_PATH);
+		BY_NAME.clear();
+		BY_PK.clear();
+
+		boolean migrate = !STORE.exists() && DB_PATH.exists();
+		if (migrate) loadLegacyDB();
+
 		try {
-			FileInputStream fileIn = new FileInputStream(DB_PATH.getAbsolutePath());
-			ObjectInputStream objectIn = new ObjectInputStream(fileIn);
+			STORE.open(Verifier::index);
+			VERIFIER_LOGGER.infof("Successfully loaded %s UserVerifier(s)!\n", STORE.getSnapshotCount() + BY_NAME.size());
+		} catch (IOException e) {
+			VERIFIER_LOGGER.err("Failed to load VERIFIER_DB!");
+			e.printStackTrace();
+			return;
+		}
 
-			VERIFIER_DB = (HashMap<String[], String[]>) objectIn.readObject();
+		if (migrate) {
+			compact();
+			File migrated = new File(DB_PATH.getPath() + ".migrated");
+			if (DB_PATH.renameTo(migrated)) VERIFIER_LOGGER.infof("Migrated VERIFIER_DB, old database kept as %s\n", migrated);
+		}
+	}
 
-			objectIn.close();
-			VERIFIER_LOGGER.info("Successfully loaded VERIFIER_DB!");
+	// Reads the serialized Hash-Map of the old format into the index
+	@SuppressWarnings("unchecked")
+	private static void loadLegacyDB() {
+		HashMap<String[], String[]> legacy;
+		try (ObjectInputStream objectIn = new ObjectInputStream(new FileInputStream(DB_PATH.getAbsolutePath()))) {
+			legacy = (HashMap<String[], String[]>) objectIn.readObject();
 		} catch (IOException | ClassNotFoundException e) {
-			VERIFIER_LOGGER.info("Failed to load VERIFIER_DB!");
+			VERIFIER_LOGGER.err("Failed to migrate old VERIFIER_DB!");
 			e.printStackTrace();
-			saveDataBase();
+			return;
 		}
+
+		legacy.forEach((k, v) -> {
+			if (BY_NAME.containsKey(v[1])) {
+				VERIFIER_LOGGER.warnf("Duplicate UserVerifier name %s, only the first one can be used!\n", v[1]);
+				return;
+			}
+			index(new Entry(v[1], v[0], Base64.getDecoder().decode(k[0]), Base64.getDecoder().decode(k[1])));
+		});
+		VERIFIER_LOGGER.infof("Migrating %s UserVerifier(s) from old VERIFIER_DB!\n", BY_NAME.size());
+	}
+
+	/**
+	 * Writes the verifiers held in memory into a new snapshot and empties the log.
+	 */
+	public static void compact() {
+		List<Entry> entries;
+		long position, records;
+		synchronized (Verifier.class) {
+			entries = new ArrayList<>(BY_NAME.values());
+			try {
+				position = STORE.getLogSize();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			records = STORE.getRecords();
+		}
+
+		try {
+			STORE.compact(entries, position, records);
+			for (Entry entry : entries) {
+				BY_NAME.remove(entry.name, entry);
+				BY_PK.remove(entry.pk, entry);
+			}
+		} catch (IOException e) {
+			VERIFIER_LOGGER.err("Failed to compact VERIFIER_DB!");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Periodically compacts the log once it holds enough records.
+	 *
+	 * @param period  Seconds between the checks
+	 * @param records Amount of records in the log which trigger a compaction
+	 */
+	public static void setupCompactionService(long period, long records) {
+		if (COMPACTION_EXECUTOR == null) COMPACTION_EXECUTOR = Threads.newScheduledExecutor("JERAN:VCMP");
+		if (COMPACTION_SERVICE != null) COMPACTION_SERVICE.cancel(false);
+		COMPACTION_SERVICE = COMPACTION_EXECUTOR.scheduleAtFixedRate(() -> {
+			if (STORE.getRecords() >= records) compact();
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	private static void index(Entry entry) {
+		BY_NAME.put(entry.name, entry);
+		BY_PK.put(entry.pk, entry);
 	}
 
 	/**
@@ -167,25 +296,26 @@ public class Verifier {
 	 * the same as the specified one.
 	 *
 	 * @param key The key to be checked for duplicates.
-	 * @return If the key has duplicates or not
+	 * @return If the key has duplicates or not, true for NULL
 	 */
 	public static boolean ensureNonDuplicatePK(String key) {
-		boolean[] returnValue = {true};
-
-		// This function has fucked my brain
-		// I don't understand why I hvae to
-		// do some things I just have to.
-		// - 0x1905
-		if (key == null) return true;
-		if (VERIFIER_DB == null || VERIFIER_DB.size() == 0) return false;
-		VERIFIER_DB.values().forEach((v) -> {
-			try {
-				if (v[0].matches(key)) returnValue[0] = false;
-			} catch (NullPointerException e) {
+		return key == null || findByPublicKey(key) != null;
+	}
 
-			}
-		});
+	/**
+	 * A Verifier as held in the index, with the decoded hash and salt.
+	 */
+	static class Entry {
+		final String name;
+		final String pk;
+		final byte[] hash;
+		final byte[] salt;
 
-		return !returnValue[0];
+		Entry(String name, String pk, byte[] hash, byte[] salt) {
+			this.name = name;
+			this.pk = pk;
+			this.hash = hash;
+			this.salt = salt;
+		}
 	}
 }
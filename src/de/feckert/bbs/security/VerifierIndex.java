@@ -0,0 +1,187 @@
+package de.feckert.bbs.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped hash index over a snapshot of the {@link VerifierLog}.
+ * The index file (".idx") holds two open addressing tables with fixed-size
+ * slots (hash, offset of the record in the snapshot), one by name and one
+ * by Public-Key.
+ * <p>
+ * Snapshot and index are mapped read-only, so opening the store does not
+ * read the verifiers into the heap. Pages are faulted in by the OS when a
+ * lookup touches them. The index carries the generation of its snapshot
+ * and is rebuilt with a scan of the snapshot if it is missing or stale.
+ * Its header is checked before it is mapped, so a stale index is never
+ * mapped and can be rebuilt in place (mapped files cannot be replaced or
+ * truncated on Windows).
+ * <p>
+ * Immutable and safe to use from any thread.
+ *
+ * @author Felix Eckert
+ */
+class VerifierIndex {
+	private static final int INDEX_MAGIC = 0x4A564931; // "JVI1"
+	private static final int HEADER_LENGTH = 24;       // magic, generation, count, capacity
+	private static final int SLOT_LENGTH = 12;         // hash, offset (0 = empty)
+
+	private final MappedByteBuffer snapshot;
+	private final MappedByteBuffer index;
+	private final long generation;
+	private final int count;
+	private final int dataStart;
+	private final int capacity;
+
+	private VerifierIndex(MappedByteBuffer snapshot, MappedByteBuffer index) throws IOException {
+		this.snapshot = snapshot;
+		this.index = index;
+		int magic = snapshot.getInt(0);
+		this.generation = magic == VerifierLog.SNAPSHOT_MAGIC ? snapshot.getLong(4) : 0;
+		this.dataStart = magic == VerifierLog.SNAPSHOT_MAGIC ? 20 : 12;
+		this.count = Math.toIntExact(snapshot.getLong(dataStart - 8));
+		this.capacity = index == null ? 0 : index.getInt(20);
+	}
+
+	/**
+	 * Maps a snapshot and its index.
+	 *
+	 * @return The index, NULL if the index file is missing or does not belong to the snapshot
+	 */
+	static VerifierIndex open(File snapshotFile, File indexFile) throws IOException {
+		MappedByteBuffer snapshot = map(snapshotFile, FileChannel.MapMode.READ_ONLY);
+		int magic = snapshot.getInt(0);
+		if (magic != VerifierLog.SNAPSHOT_MAGIC && magic != VerifierLog.SNAPSHOT_MAGIC_V1) {
+			throw new IOException("Invalid verifier snapshot " + snapshotFile);
+		}
+
+		VerifierIndex unindexed = new VerifierIndex(snapshot, null);
+		if (!indexFile.exists()) return null;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		long size;
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			size = channel.size();
+			while (header.hasRemaining() && channel.read(header) >= 0) ;
+		}
+		if (header.hasRemaining() || header.getInt(0) != INDEX_MAGIC
+				|| header.getLong(4) != unindexed.generation || header.getInt(12) != unindexed.count
+				|| size != HEADER_LENGTH + 2L * header.getInt(20) * SLOT_LENGTH) {
+			return null;
+		}
+		return new VerifierIndex(snapshot, map(indexFile, FileChannel.MapMode.READ_ONLY));
+	}
+
+	/**
+	 * Writes the index of a snapshot by scanning all of its records, an
+	 * existing index file is overwritten in place. It must not be mapped.
+	 */
+	static void build(File snapshotFile, File indexFile) throws IOException {
+		VerifierIndex source = new VerifierIndex(map(snapshotFile, FileChannel.MapMode.READ_ONLY), null);
+		int capacity = 16;
+		while (capacity < source.count * 2L) capacity <<= 1;
+
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+			file.setLength(0); // Empty slots have to be zero
+			file.setLength(HEADER_LENGTH + 2L * capacity * SLOT_LENGTH);
+			MappedByteBuffer index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			index.putInt(0, INDEX_MAGIC);
+			index.putLong(4, source.generation);
+			index.putInt(12, source.count);
+			index.putInt(16, 0);
+			index.putInt(20, capacity);
+
+			int offset = source.dataStart;
+			for (int i = 0; i < source.count; i++) {
+				Verifier.Entry entry = source.read(offset);
+				insert(index, 0, capacity, hash(entry.name), offset);
+				insert(index, capacity, capacity, hash(entry.pk), offset);
+				offset += 8 + source.snapshot.getInt(offset);
+			}
+			index.force();
+		}
+	}
+
+	/**
+	 * @return The verifier with the name, NULL if there is none
+	 */
+	Verifier.Entry findByName(String name) throws IOException {
+		return find(0, name, true);
+	}
+
+	/**
+	 * @return The verifier with the Public-Key, NULL if there is none
+	 */
+	Verifier.Entry findByPublicKey(String pk) throws IOException {
+		return find(capacity, pk, false);
+	}
+
+	/**
+	 * @return Amount of verifiers in the snapshot
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Offset of the first record in the snapshot
+	 */
+	int getDataStart() {
+		return dataStart;
+	}
+
+	private Verifier.Entry find(int table, String key, boolean byName) throws IOException {
+		int hash = hash(key);
+		int mask = capacity - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int slot = HEADER_LENGTH + (table + i) * SLOT_LENGTH;
+			int offset = (int) index.getLong(slot + 4);
+			if (offset == 0) return null;
+			if (index.getInt(slot) != hash) continue;
+
+			Verifier.Entry entry = read(offset);
+			if (key.equals(byName ? entry.name : entry.pk)) return entry;
+		}
+	}
+
+	// Reads and checks the record at the offset of the snapshot
+	private Verifier.Entry read(int offset) throws IOException {
+		ByteBuffer view = snapshot.duplicate();
+		view.position(offset);
+		int length = view.getInt();
+		int checksum = view.getInt();
+		byte[] body = new byte[length];
+		view.get(body);
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != checksum) throw new IOException("Record checksum mismatch at " + offset);
+		return VerifierLog.decodeBody(body);
+	}
+
+	private static void insert(MappedByteBuffer index, int table, int capacity, int hash, long offset) {
+		int mask = capacity - 1;
+		int i = hash & mask;
+		while (index.getLong(HEADER_LENGTH + (table + i) * SLOT_LENGTH + 4) != 0) i = (i + 1) & mask;
+		int slot = HEADER_LENGTH + (table + i) * SLOT_LENGTH;
+		index.putInt(slot, hash);
+		index.putLong(slot + 4, offset);
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+			return raf.getChannel().map(mode, 0, raf.length());
+		}
+	}
+}
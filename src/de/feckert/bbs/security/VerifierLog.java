@@ -0,0 +1,367 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of the {@link Verifier} database, made of a snapshot
+ * (".snap") with its {@link VerifierIndex} (".idx") and an append-only
+ * log (".log") of the verifiers created since the snapshot was written.
+ * <p>
+ * Every record is prefixed with its length and a CRC32 of its body. A new
+ * verifier costs a single append and fsync of the log, not a rewrite of the
+ * database. On load the snapshot is mapped and the log is replayed, a torn or
+ * corrupted record at the end of the log (crash during an append) is cut off.
+ * Verifiers of the snapshot are only read when they are looked up.
+ * <p>
+ * The three files belong to a generation, their names carry it as a suffix
+ * (e.g. ".snap.3"), and the manifest (".manifest") names the current one.
+ * Stores without a manifest are at generation 0, which uses the plain names.
+ * Compaction writes the next generation next to the current one: a snapshot
+ * of the old snapshot and the given verifiers, its index and a log of the
+ * records appended in the meantime. It then switches to it by replacing the
+ * manifest. Only the manifest is ever replaced and it is never mapped or
+ * held open, the files of the old generation are deleted after the switch
+ * (or on the next open, if they are still mapped on Windows). A crash at any
+ * point leaves either the old or the new generation, each complete.
+ *
+ * @author Felix Eckert
+ */
+public class VerifierLog {
+	static final int SNAPSHOT_MAGIC_V1 = 0x4A565331; // "JVS1", without generation
+	static final int SNAPSHOT_MAGIC = 0x4A565332;    // "JVS2"
+	private static final int MANIFEST_MAGIC = 0x4A564D31; // "JVM1"
+	private static final int MAX_RECORD_LENGTH = 4096;
+	private static final byte RECORD_PUT = 1;
+	private static final Logger LOGGER = Logger.create("JERAN:VLOG");
+
+	private final File base;
+	private final File manifestFile;
+	private final Object compactLock = new Object();
+	private long generation = 0;
+	private FileChannel log;
+	private long records = 0;
+	private volatile VerifierIndex index;
+
+	/**
+	 * @param base Path of the store without extension
+	 */
+	public VerifierLog(File base) {
+		this.base = base;
+		this.manifestFile = new File(base.getPath() + ".manifest");
+	}
+
+	/**
+	 * @return If a snapshot or log exists
+	 */
+	public boolean exists() {
+		return manifestFile.exists() || file("snap", 0).exists() || file("log", 0).exists();
+	}
+
+	/**
+	 * Maps the snapshot, replays the log and opens the log for appending.
+	 *
+	 * @param consumer Receives every verifier of the log in the order they were stored
+	 */
+	public synchronized void open(Consumer<Verifier.Entry> consumer) throws IOException {
+		generation = readManifest();
+		deleteStale();
+
+		File snapshotFile = file("snap", generation);
+		File indexFile = file("idx", generation);
+		if (snapshotFile.exists()) {
+			index = VerifierIndex.open(snapshotFile, indexFile);
+			if (index == null) {
+				LOGGER.info("Verifier index is missing or stale, rebuilding it!");
+				VerifierIndex.build(snapshotFile, indexFile);
+				index = VerifierIndex.open(snapshotFile, indexFile);
+			}
+			LOGGER.infof("Mapped %s verifier(s) from snapshot of generation %s!\n", index.getCount(), generation);
+		}
+
+		log = FileChannel.open(file("log", generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		records = 0;
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log)));
+		try {
+			while (valid < log.size()) {
+				byte[] body = read(in);
+				consumer.accept(decodeBody(body));
+				valid += 8 + body.length;
+				records++;
+			}
+		} catch (IOException e) {
+			LOGGER.warnf("Cut off %s byte(s) of torn verifier log at offset %s (%s)!\n",
+					log.size() - valid, valid, e);
+			log.truncate(valid);
+			log.force(true);
+		}
+		log.position(valid);
+		LOGGER.infof("Replayed %s verifier(s) from log!\n", records);
+	}
+
+	/**
+	 * @return The verifier of the snapshot with the name, NULL if there is none
+	 */
+	public Verifier.Entry findByName(String name) throws IOException {
+		VerifierIndex index = this.index;
+		return index == null ? null : index.findByName(name);
+	}
+
+	/**
+	 * @return The verifier of the snapshot with the Public-Key, NULL if there is none
+	 */
+	public Verifier.Entry findByPublicKey(String pk) throws IOException {
+		VerifierIndex index = this.index;
+		return index == null ? null : index.findByPublicKey(pk);
+	}
+
+	/**
+	 * @return Amount of verifiers in the snapshot
+	 */
+	public int getSnapshotCount() {
+		VerifierIndex index = this.index;
+		return index == null ? 0 : index.getCount();
+	}
+
+	/**
+	 * @return The current generation of the store
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Appends a verifier to the log and forces it to disk.
+	 */
+	public synchronized void append(Verifier.Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(encode(entry));
+		while (buffer.hasRemaining()) log.write(buffer);
+		log.force(false);
+		records++;
+	}
+
+	/**
+	 * @return Size of the log in bytes, the position for {@link VerifierLog#compact}
+	 */
+	public synchronized long getLogSize() throws IOException {
+		return log.size();
+	}
+
+	/**
+	 * @return Amount of records in the log
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Writes the next generation of the store and switches to it, the new
+	 * log only holds the records after the given position.
+	 * The verifiers and the position have to be taken at the same time.
+	 *
+	 * @param entries         All verifiers up to the position which are not in the snapshot yet
+	 * @param position        Size of the log when the verifiers were taken
+	 * @param positionRecords Amount of records in the log up to the position
+	 */
+	public void compact(Collection<Verifier.Entry> entries, long position, long positionRecords) throws IOException {
+		synchronized (compactLock) {
+			VerifierIndex old = index;
+			long current = getGeneration();
+			long next = current + 1;
+			long count = (old == null ? 0 : old.getCount()) + entries.size();
+
+			// Leftovers of a crashed compaction are overwritten, they were never part of a generation
+			File snapshotNext = file("snap", next);
+			try (FileOutputStream fileOut = new FileOutputStream(snapshotNext)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeLong(new SecureRandom().nextLong()); // Ties the index to the snapshot
+				out.writeLong(count);
+				out.flush();
+
+				// The records of the old snapshot are copied as they are
+				if (old != null) {
+					try (FileChannel in = FileChannel.open(file("snap", current).toPath(), StandardOpenOption.READ)) {
+						long size = in.size() - old.getDataStart();
+						for (long done = 0; done < size; ) {
+							done += in.transferTo(old.getDataStart() + done, size - done, fileOut.getChannel());
+						}
+					}
+				}
+				for (Verifier.Entry entry : entries) out.write(encode(entry));
+				out.flush();
+				fileOut.getFD().sync();
+			}
+			File indexNext = file("idx", next);
+			VerifierIndex.build(snapshotNext, indexNext);
+			VerifierIndex nextIndex = VerifierIndex.open(snapshotNext, indexNext);
+			if (nextIndex == null) throw new IOException("Failed to index " + snapshotNext);
+
+			FileChannel oldLog;
+			synchronized (this) {
+				// Carry over the records appended while the snapshot was written
+				FileChannel nextLog = FileChannel.open(file("log", next).toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				try {
+					long tail = log.size() - position;
+					for (long done = 0; done < tail; ) done += log.transferTo(position + done, tail - done, nextLog);
+					nextLog.force(false);
+					writeManifest(next);
+				} catch (IOException e) {
+					nextLog.close();
+					throw e;
+				}
+
+				oldLog = log;
+				log = nextLog;
+				log.position(log.size());
+				index = nextIndex;
+				generation = next;
+				records -= positionRecords;
+			}
+
+			// The old generation is only let go of after the switch
+			oldLog.close();
+			deleteGeneration(current);
+			LOGGER.infof("Compacted %s verifier(s) into snapshot of %s, now at generation %s!\n", entries.size(), count, next);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			if (log != null) log.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		log = null;
+	}
+
+	// Name of a file of the given generation, generation 0 uses the plain names
+	private File file(String extension, long generation) {
+		return new File(base.getPath() + "." + extension + (generation == 0 ? "" : "." + generation));
+	}
+
+	// Generation named by the manifest, 0 if there is none
+	private long readManifest() throws IOException {
+		if (!manifestFile.exists()) return 0;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(manifestFile))) {
+			int magic = in.readInt();
+			long generation = in.readLong();
+			int checksum = in.readInt();
+			if (magic != MANIFEST_MAGIC || checksum != manifestChecksum(generation)) {
+				throw new IOException("Invalid verifier manifest " + manifestFile);
+			}
+			return generation;
+		} catch (EOFException e) {
+			throw new IOException("Truncated verifier manifest " + manifestFile, e);
+		}
+	}
+
+	// Switches the store to the generation, the manifest is written next to the old one and renamed over it
+	private void writeManifest(long generation) throws IOException {
+		File temp = new File(manifestFile.getPath() + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(fileOut);
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeLong(generation);
+			out.writeInt(manifestChecksum(generation));
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int manifestChecksum(long generation) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(12).putInt(MANIFEST_MAGIC).putLong(generation).array());
+		return (int) crc.getValue();
+	}
+
+	private void deleteGeneration(long generation) {
+		for (String extension : new String[] {"snap", "idx", "log"}) {
+			File file = file(extension, generation);
+			if (file.exists() && !file.delete()) {
+				LOGGER.infof("Could not delete %s yet, it is deleted on the next load!\n", file);
+			}
+		}
+	}
+
+	// Deletes the files of other generations, left over by a crash during a compaction or by old mappings
+	private void deleteStale() {
+		File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null) return;
+
+		String prefix = base.getName() + ".";
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix)) continue;
+			String[] parts = name.substring(prefix.length()).split("\\."); // e.g. "snap", "idx.3" or "log.tmp"
+			if (!parts[0].equals("snap") && !parts[0].equals("idx") && !parts[0].equals("log")) continue;
+			if (parts.length == 1 ? generation == 0 : parts.length == 2 && parts[1].equals(Long.toString(generation))) continue;
+
+			if (file.delete()) LOGGER.infof("Deleted stale verifier file %s\n", file);
+			else LOGGER.warnf("Failed to delete stale verifier file %s!\n", file);
+		}
+	}
+
+	// Reads the body of the next record and verifies its checksum
+	private static byte[] read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int checksum = in.readInt();
+		if (length <= 0 || length > MAX_RECORD_LENGTH) throw new IOException("Invalid record length " + length);
+
+		byte[] body = new byte[length];
+		in.readFully(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != checksum) throw new IOException("Record checksum mismatch");
+		return body;
+	}
+
+	private static byte[] encode(Verifier.Entry entry) throws IOException {
+		byte[] body = encodeBody(entry);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+		record.putInt(body.length).putInt((int) crc.getValue()).put(body);
+		return record.array();
+	}
+
+	private static byte[] encodeBody(Verifier.Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_PUT);
+		out.writeUTF(entry.name);
+		out.writeUTF(entry.pk);
+		out.writeByte(entry.hash.length);
+		out.write(entry.hash);
+		out.writeByte(entry.salt.length);
+		out.write(entry.salt);
+		return bytes.toByteArray();
+	}
+
+	static Verifier.Entry decodeBody(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		if (in.readByte() != RECORD_PUT) throw new IOException("Unknown record type");
+		String name = in.readUTF();
+		String pk = in.readUTF();
+		byte[] hash = new byte[in.readUnsignedByte()];
+		in.readFully(hash);
+		byte[] salt = new byte[in.readUnsignedByte()];
+		in.readFully(salt);
+		return new Verifier.Entry(name, pk, hash, salt);
+	}
+}
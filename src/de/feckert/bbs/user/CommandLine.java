@@ -0,0 +1,138 @@
+package de.feckert.bbs.user;
+
+import java.util.Arrays;
+
+/**
+ * A tokenized command line. The tokens are kept as slices (start/end)
+ * of the input, nothing is copied unless a token is requested as String.
+ * Instances are reused by the session for every command, they must not
+ * be kept by a {@link CommandRegistry.Command} after it returned.
+ * <p>
+ * Token 0 is the command itself, the arguments are indexed from 0
+ * starting with the first token after the command.
+ *
+ * @author Felix Eckert
+ */
+public class CommandLine {
+	private String line = "";
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count = 0;
+
+	/**
+	 * Splits a line at spaces, consecutive spaces do not produce empty tokens.
+	 *
+	 * @param line The line to be tokenized
+	 * @return This CommandLine
+	 */
+	public CommandLine parse(String line) {
+		this.line = line;
+		this.count = 0;
+
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && line.charAt(i) == ' ') i++;
+			if (i == length) break;
+
+			int start = i;
+			while (i < length && line.charAt(i) != ' ') i++;
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = start;
+			ends[count++] = i;
+		}
+		return this;
+	}
+
+	/**
+	 * @return If the line contained no tokens
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return The whole line
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * @return Amount of arguments after the command
+	 */
+	public int argCount() {
+		return count == 0 ? 0 : count - 1;
+	}
+
+	/**
+	 * @param index Index of the argument
+	 * @return The argument as String
+	 */
+	public String arg(int index) {
+		checkArg(index);
+		return line.substring(starts[index + 1], ends[index + 1]);
+	}
+
+	/**
+	 * Compares an argument without copying it.
+	 *
+	 * @param index Index of the argument
+	 * @param value Expected value
+	 * @return If the argument equals the value
+	 */
+	public boolean argEquals(int index, String value) {
+		checkArg(index);
+		return tokenEquals(index + 1, value);
+	}
+
+	/**
+	 * Parses an argument as int without copying it.
+	 *
+	 * @param index Index of the argument
+	 * @return The parsed value
+	 * @throws NumberFormatException If the argument is not a valid int
+	 */
+	public int argInt(int index) {
+		checkArg(index);
+		return Integer.parseInt(line, starts[index + 1], ends[index + 1], 10);
+	}
+
+	/**
+	 * @param index Index of the first argument
+	 * @return Everything from the argument to the end of the line, spaces included
+	 */
+	public String rest(int index) {
+		checkArg(index);
+		return line.substring(starts[index + 1]);
+	}
+
+	/**
+	 * @return Hash of the command, equal to the hashCode() of it as String
+	 */
+	int commandHash() {
+		int hash = 0;
+		for (int i = starts[0]; i < ends[0]; i++) hash = 31 * hash + line.charAt(i);
+		return hash;
+	}
+
+	/**
+	 * @param name Name to compare with
+	 * @return If the command equals the name
+	 */
+	boolean commandEquals(String name) {
+		return tokenEquals(0, name);
+	}
+
+	private boolean tokenEquals(int token, String value) {
+		int length = ends[token] - starts[token];
+		return length == value.length() && line.regionMatches(starts[token], value, 0, length);
+	}
+
+	private void checkArg(int index) {
+		if (index < 0 || index + 1 >= count) throw new IndexOutOfBoundsException("Argument " + index + " of " + argCount());
+	}
+}
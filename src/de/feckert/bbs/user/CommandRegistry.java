@@ -0,0 +1,130 @@
+package de.feckert.bbs.user;
+
+import java.io.IOException;
+
+/**
+ * Maps command names to their {@link Command}. The built-in commands are
+ * registered by the {@link UserSession}, further modules (e.g. uploads or
+ * administration) can register their own at any time.
+ * <p>
+ * Commands are looked up by the slice of the {@link CommandLine}, no String
+ * is created for the lookup. The table is copied on every registration so
+ * lookups do not need any locking.
+ *
+ * @author Felix Eckert
+ */
+public class CommandRegistry {
+	private volatile Entry[] table = new Entry[32];
+	private int size = 0;
+
+	/**
+	 * Executes a command for a session.
+	 */
+	@FunctionalInterface
+	public interface Command {
+		/**
+		 * @param session The session which invoked the command
+		 * @param line    The tokenized command line, only valid during the call
+		 * @throws IOException
+		 */
+		void execute(UserSession session, CommandLine line) throws IOException;
+	}
+
+	/**
+	 * Registers a command, replacing a command with the same name.
+	 *
+	 * @param name    Name of the command, must not contain spaces
+	 * @param command The command
+	 */
+	public synchronized void register(String name, Command command) {
+		if (name.isEmpty() || name.indexOf(' ') != -1) {
+			throw new IllegalArgumentException("Invalid command name \"" + name + "\"!");
+		}
+
+		Entry[] copy = new Entry[(size + 1) * 2 > table.length ? table.length * 2 : table.length];
+		size = 0;
+		for (Entry entry : table) {
+			if (entry != null && !entry.name.equals(name)) insert(copy, entry);
+		}
+		insert(copy, new Entry(name, command));
+		table = copy;
+	}
+
+	/**
+	 * Removes a command.
+	 *
+	 * @param name Name of the command
+	 * @return If the command was registered
+	 */
+	public synchronized boolean unregister(String name) {
+		Entry[] copy = new Entry[table.length];
+		int previous = size;
+		size = 0;
+		for (Entry entry : table) {
+			if (entry != null && !entry.name.equals(name)) insert(copy, entry);
+		}
+		table = copy;
+		return size != previous;
+	}
+
+	/**
+	 * Looks up the command of a command line.
+	 *
+	 * @param line The command line, must not be empty
+	 * @return The registered command, NULL if there is none
+	 */
+	public Entry lookup(CommandLine line) {
+		Entry[] table = this.table;
+		int hash = line.commandHash();
+		int mask = table.length - 1;
+		for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+			Entry entry = table[i];
+			if (entry == null) return null;
+			if (entry.hash == hash && line.commandEquals(entry.name)) return entry;
+		}
+	}
+
+	/**
+	 * @param name Name of the command
+	 * @return If a command with the name is registered
+	 */
+	public boolean contains(String name) {
+		return lookup(new CommandLine().parse(name)) != null;
+	}
+
+	// Linear probing, the table is always at most half full
+	private void insert(Entry[] table, Entry entry) {
+		int mask = table.length - 1;
+		int i = spread(entry.hash) & mask;
+		while (table[i] != null) i = (i + 1) & mask;
+		table[i] = entry;
+		size++;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * A registered command with its name.
+	 */
+	public static class Entry {
+		private final String name;
+		private final int hash;
+		private final Command command;
+
+		Entry(String name, Command command) {
+			this.name = name;
+			this.hash = name.hashCode();
+			this.command = command;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Command getCommand() {
+			return command;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package de.feckert.bbs.user;
+
+/**
+ * Decides when the output of a session is sent. With IMMEDIATE every
+ * frame is sent on its own (one write per frame), with BOUNDARY frames
+ * are coalesced and sent before input is requested, once the buffer is
+ * full or after at most the max latency.
+ * <p>
+ * A session whose client does not take its output stops reading input once
+ * more than the output limit is unsent, and is dropped once more than the
+ * drop limit is unsent (e.g. output written to it by other sessions).
+ *
+ * @author Felix Eckert
+ */
+public class FlushPolicy {
+	private final boolean immediate;
+	private final int bufferSize;
+	private final int maxLatency;
+	private final int outputLimit;
+	private final int dropLimit;
+
+	/**
+	 * @param mode        IMMEDIATE or BOUNDARY
+	 * @param bufferSize  Buffered bytes after which output is sent regardless
+	 * @param maxLatency  Milliseconds after which buffered output is sent regardless
+	 * @param outputLimit Unsent bytes after which a session stops reading input
+	 * @param dropLimit   Unsent bytes after which a session is dropped
+	 */
+	public FlushPolicy(String mode, int bufferSize, int maxLatency, int outputLimit, int dropLimit) {
+		this.immediate = mode.equals("IMMEDIATE");
+		this.bufferSize = bufferSize;
+		this.maxLatency = maxLatency;
+		this.outputLimit = outputLimit;
+		this.dropLimit = dropLimit;
+	}
+
+	public boolean isImmediate() {
+		return immediate;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getMaxLatency() {
+		return maxLatency;
+	}
+
+	public int getOutputLimit() {
+		return outputLimit;
+	}
+
+	public int getDropLimit() {
+		return dropLimit;
+	}
+}
@@ -0,0 +1,306 @@
+package de.feckert.bbs.user;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output queue of a {@link UserThread}. Written frames are released on
+ * flush and sent by a writer of the {@link PacingScheduler}, unless a write
+ * delay is pending, in which case they are queued behind the delay.
+ * Everything sent in one go is coalesced into as few socket writes as
+ * possible.
+ * <p>
+ * A writer is only taken while released output waits to be sent, an idle
+ * session holds no thread besides its own. At most one writer sends the
+ * output at a time and it does so without holding the lock, so neither the
+ * session thread, the timer threads of the {@link PacingScheduler} nor
+ * other sessions writing to this one (msg) ever block on a client which
+ * stops reading. Write delays and the max latency of the {@link FlushPolicy}
+ * are timed by the scheduler.
+ * <p>
+ * Guarded by a {@link ReentrantLock} instead of synchronized blocks so
+ * virtual threads are not pinned.
+ *
+ * @author Felix Eckert
+ */
+class PacedOutput implements Runnable {
+	private final OutputStream out;
+	private final PacingScheduler scheduler;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition caughtUp = lock.newCondition();
+
+	private final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+	private int releasedChunks = 0; // Chunks at the head of the queue which may be sent
+	private boolean paused = false;
+	private boolean writing = false; // A writer is sending or about to send the output
+	private boolean failed = false;
+	private boolean closed = false;
+	private boolean flushScheduled = false; // A latency flush is pending
+	private long releases = 0; // Counts the releases, a latency flush is void once the output was released
+	private int buffered = 0;
+	private int unsent = 0; // Written bytes which are not sent yet
+	private Runnable onDrained = null;
+
+	/**
+	 * @param out       The stream of the socket
+	 * @param scheduler Scheduler timing the write delays and running the writers
+	 */
+	PacedOutput(OutputStream out, PacingScheduler scheduler) {
+		this.out = out;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Queues encoded bytes behind the written output.
+	 *
+	 * @param bytes The bytes, not copied and therefore never to be modified
+	 * @return Amount of written bytes which are not sent yet
+	 */
+	int write(byte[] bytes) {
+		lock.lock();
+		try {
+			queue.add(new Chunk(bytes, 0));
+			buffered += bytes.length;
+			unsent += bytes.length;
+			return unsent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases all written frames to a writer, they are sent once a pending
+	 * delay passed. Can be called from any thread, never blocks
+	 * on the socket.
+	 */
+	void flush() {
+		lock.lock();
+		try {
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes after the given time unless flushed before.
+	 */
+	void flushWithin(int millis) {
+		lock.lock();
+		try {
+			if (flushScheduled || buffered == 0 || closed) return;
+			flushScheduled = true;
+			long release = releases;
+			scheduler.schedule(() -> flushLate(release), millis);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Runs on a scheduler thread, releases the output unless it was released since the flush was scheduled
+	private void flushLate(long release) {
+		lock.lock();
+		try {
+			if (flushScheduled && releases == release) release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Amount of written but not yet released bytes
+	 */
+	int buffered() {
+		lock.lock();
+		try {
+			return buffered;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Amount of written bytes which are not sent yet
+	 */
+	int unsent() {
+		lock.lock();
+		try {
+			return unsent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until no more than the given amount of bytes waits to be
+	 * sent, or the connection broke.
+	 */
+	void awaitUnsentBelow(int limit) {
+		lock.lock();
+		try {
+			while (unsent > limit && !failed) caughtUp.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Delays all further output by the given amount of milliseconds,
+	 * the output written before is released.
+	 */
+	void pause(int delay) {
+		if (delay <= 0) return;
+		lock.lock();
+		try {
+			queue.add(new Chunk(null, delay));
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the given action once all queued output was sent.
+	 */
+	void whenDrained(Runnable action) {
+		lock.lock();
+		try {
+			if (isDrained()) {
+				action.run();
+				return;
+			}
+			onDrained = action;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops releasing output, the output released so far is still sent.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Runs on a scheduler thread, which must never write to the socket
+	private void resume() {
+		lock.lock();
+		try {
+			paused = false;
+			startWriter();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Hands the released output to a writer unless one is sending already. Lock has to be held
+	private void startWriter() {
+		if (writing || paused || releasedChunks == 0) return;
+		writing = true;
+		scheduler.execute(this);
+	}
+
+	/**
+	 * Writer, sends the released output up to the next delay which is not
+	 * passed yet.
+	 */
+	@Override
+	public void run() {
+		ArrayList<byte[]> batch = new ArrayList<>();
+		lock.lock();
+		try {
+			while (!paused && releasedChunks > 0) {
+				// Take the released chunks up to the next delay
+				int delay = 0;
+				int size = 0;
+				while (releasedChunks > 0) {
+					Chunk chunk = queue.poll();
+					releasedChunks--;
+					if (chunk.data == null) {
+						delay = chunk.delay;
+						paused = !failed;
+						break;
+					}
+					batch.add(chunk.data);
+					size += chunk.data.length;
+				}
+
+				// Write without the lock, so sessions can keep queueing
+				lock.unlock();
+				boolean ok = send(batch);
+				lock.lock();
+				batch.clear();
+				unsent -= size;
+
+				if (!ok) {
+					failed = true;
+					paused = false;
+					queue.clear();
+					releasedChunks = 0;
+					unsent = 0;
+				} else if (paused) {
+					scheduler.schedule(this::resume, delay);
+				}
+				caughtUp.signalAll();
+			}
+			writing = false;
+
+			if (onDrained != null && isDrained()) {
+				Runnable action = onDrained;
+				onDrained = null;
+				action.run();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Writes a batch to the socket, false if the connection broke
+	private boolean send(ArrayList<byte[]> batch) {
+		if (failed) return true; // The read loop of the UserThread notices the broken connection
+		try {
+			for (byte[] data : batch) out.write(data);
+			out.flush();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Lock has to be held
+	private void release() {
+		if (closed) return;
+		releasedChunks = queue.size();
+		buffered = 0;
+		flushScheduled = false;
+		releases++;
+		startWriter();
+	}
+
+	// Lock has to be held
+	private boolean isDrained() {
+		return !writing && !paused && queue.isEmpty();
+	}
+
+	/**
+	 * Queued output, either bytes to be written or a write delay.
+	 */
+	private static class Chunk {
+		final byte[] data;
+		final int delay;
+
+		Chunk(byte[] data, int delay) {
+			this.data = data;
+			this.delay = delay;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Threads;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Releases delayed output segments (see the write delay negotiated with
+ * 0x02) of all {@link UserThread}s from a small shared pool of timer
+ * threads, so no session thread has to sleep while text is rendered.
+ * The timers only hand the release to a writer (see {@link PacedOutput}),
+ * they never write to a socket themselves.
+ * <p>
+ * Writers are threads shared by all sessions which only exist while some
+ * session has released output to send, idle writers end after a while.
+ * The pool of writers is not bounded, as a writer blocks on the socket of
+ * a client which stops reading and must not hold up the other sessions.
+ *
+ * @author Felix Eckert
+ */
+public class PacingScheduler {
+	private final Logger LOGGER;
+	private final ScheduledThreadPoolExecutor executor;
+	private final ThreadPoolExecutor writers;
+
+	/**
+	 * @param threads Amount of timer threads
+	 */
+	public PacingScheduler(int threads) {
+		this.LOGGER = Logger.create("JERAN:PACE");
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), (runnable) -> {
+			Thread thread = new Thread(runnable, "JERAN:PACE_" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+
+		AtomicInteger writerCounter = new AtomicInteger();
+		this.writers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), (runnable) -> {
+			Thread thread = Threads.create(runnable, "JERAN:WRITE_" + writerCounter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		LOGGER.infof("Started PacingScheduler with %s thread(s)!\n", executor.getCorePoolSize());
+	}
+
+	/**
+	 * Runs a task after the given delay.
+	 *
+	 * @param task  The task, the release of a paced output
+	 * @param delay Delay in milliseconds
+	 */
+	void schedule(Runnable task, int delay) {
+		executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends released output on a writer.
+	 *
+	 * @param writer The writer of a paced output
+	 */
+	void execute(Runnable writer) {
+		writers.execute(writer);
+	}
+
+	/**
+	 * @return Amount of paced segments waiting to be released
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+		writers.shutdownNow();
+	}
+}
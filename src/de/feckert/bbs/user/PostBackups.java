@@ -0,0 +1,188 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed backups of the {@link PostJournal} and their retention.
+ * <p>
+ * A backup ("POST BACKUP-yyyy-MM-dd-HH-mm-ss.journal.gz") is a GZIP copy
+ * of the journal up to its last written post, so taking one does not block
+ * the PostSaveService. Backups are kept in three tiers, the newest N, the
+ * newest of each of the last H hours and the newest of each of the last D
+ * days, all other backups are deleted. Old plain-text backups of earlier
+ * versions (".txt") fall under the same retention and are compressed.
+ * <p>
+ * If the journal is missing at startup, the newest backup is streamed
+ * back into it, see {@link PostBackups#restoreLatest(File)}.
+ *
+ * @author Felix Eckert
+ */
+public class PostBackups {
+	private static final Logger LOGGER = Logger.create("JERAN:PBAK");
+	private static final String PREFIX = "POST BACKUP-";
+	private static final Pattern NAME = Pattern.compile(
+			"POST BACKUP-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2})\\.(txt|journal)(\\.gz)?");
+
+	private final File directory;
+	private final int keepLast;
+	private final int keepHourly;
+	private final int keepDaily;
+	private long lastLength = -1;
+
+	public PostBackups(File directory, int keepLast, int keepHourly, int keepDaily) {
+		this.directory = directory;
+		this.keepLast = Math.max(1, keepLast);
+		this.keepHourly = Math.max(0, keepHourly);
+		this.keepDaily = Math.max(0, keepDaily);
+	}
+
+	/**
+	 * Backs up the journal if posts were written since the last backup
+	 * and applies the retention.
+	 */
+	public synchronized void run(PostJournal journal) {
+		try {
+			long length = journal.getLength();
+			if (length > 0 && length != lastLength) {
+				backup(journal.getFile(), length);
+				lastLength = length;
+			}
+			applyRetention();
+		} catch (IOException e) {
+			LOGGER.err("Failed to back up the post journal (IOException)");
+			e.printStackTrace();
+		}
+	}
+
+	// Compresses the first length bytes of the journal into a new backup
+	private void backup(File journal, long length) throws IOException {
+		long start = System.currentTimeMillis();
+		File backup = new File(directory, PREFIX + Util.getDateTimeString().replaceAll("[_/: ]", "-") + ".journal.gz");
+		if (backup.exists()) return;
+
+		File tmp = new File(directory, backup.getName() + ".tmp");
+		try (InputStream in = new FileInputStream(journal); OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+			copy(in, out, length);
+		}
+		Files.move(tmp.toPath(), backup.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.infof("Backed up %s byte(s) of the post journal to %s (%s byte(s)) in %sms!\n",
+				length, backup.getName(), backup.length(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Deletes the backups which are in none of the tiers and compresses
+	 * the plain-text backups which are kept.
+	 */
+	public void applyRetention() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+
+		// Newest first, the names sort by their time
+		TreeMap<String, File> backups = new TreeMap<>(Comparator.reverseOrder());
+		for (File file : files) {
+			if (file.getName().startsWith(PREFIX) && file.getName().endsWith(".tmp")) {
+				Files.deleteIfExists(file.toPath()); // Left over by a crash
+				continue;
+			}
+			Matcher matcher = NAME.matcher(file.getName());
+			if (matcher.matches()) backups.put(matcher.group(1) + file.getName(), file);
+		}
+
+		Set<String> keep = new HashSet<>();
+		keepNewest(backups.keySet(), keep, 19, keepLast);  // Whole time stamp
+		keepNewest(backups.keySet(), keep, 13, keepHourly); // yyyy-MM-dd-HH
+		keepNewest(backups.keySet(), keep, 10, keepDaily);  // yyyy-MM-dd
+
+		for (Map.Entry<String, File> backup : backups.entrySet()) {
+			File file = backup.getValue();
+			if (!keep.contains(backup.getKey())) {
+				Files.deleteIfExists(file.toPath());
+				LOGGER.infof("Deleted expired backup %s\n", file.getName());
+			} else if (!file.getName().endsWith(".gz")) {
+				compress(file);
+			}
+		}
+	}
+
+	// Keeps the newest backup of each of the newest periods, a period is a prefix of the time stamp
+	private static void keepNewest(Set<String> backups, Set<String> keep, int periodLength, int periods) {
+		String last = null;
+		for (String backup : backups) {
+			if (periods == 0) return;
+			String period = backup.substring(0, periodLength);
+			if (period.equals(last)) continue;
+			keep.add(backup);
+			last = period;
+			periods--;
+		}
+	}
+
+	private static void compress(File file) throws IOException {
+		File compressed = new File(file.getParentFile(), file.getName() + ".gz");
+		File tmp = new File(file.getParentFile(), compressed.getName() + ".tmp");
+		try (InputStream in = new FileInputStream(file); OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+			copy(in, out, Long.MAX_VALUE);
+		}
+		Files.move(tmp.toPath(), compressed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(file.toPath());
+		LOGGER.infof("Compressed backup %s (%s byte(s))\n", compressed.getName(), compressed.length());
+	}
+
+	/**
+	 * Restores the journal in the directory from the newest backup of it.
+	 *
+	 * @return If a backup was restored
+	 */
+	public static boolean restoreLatest(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) return false;
+
+		File latest = null;
+		for (File file : files) {
+			Matcher matcher = NAME.matcher(file.getName());
+			if (matcher.matches() && matcher.group(2).equals("journal")
+					&& (latest == null || file.getName().compareTo(latest.getName()) > 0)) {
+				latest = file;
+			}
+		}
+		if (latest == null) return false;
+
+		restore(latest, new File(directory, PostJournal.FILE_NAME));
+		return true;
+	}
+
+	/**
+	 * Streams a (compressed) backup into the journal, replacing it.
+	 */
+	public static void restore(File backup, File journal) throws IOException {
+		File tmp = new File(journal.getParentFile(), journal.getName() + ".tmp");
+		try (InputStream in = backup.getName().endsWith(".gz")
+				? new GZIPInputStream(new FileInputStream(backup), 1 << 16) : new FileInputStream(backup);
+			 FileOutputStream out = new FileOutputStream(tmp)) {
+			copy(in, out, Long.MAX_VALUE);
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		LOGGER.warnf("Restored the post journal from %s (%s byte(s))!\n", backup.getName(), journal.length());
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (read < 0) break;
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Threads;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory inverted index over the titles and texts of the posts, for
+ * the "search" command.
+ * <p>
+ * Every term (lower case run of letters and digits, 2 to 32 chars) maps to
+ * the IDs of the posts containing it, held in a growing int array. Posts
+ * are indexed strictly in the order of their IDs by a single writer at a
+ * time, so the lists are always sorted and can be read without locks while
+ * new posts are indexed.
+ * <p>
+ * A query returns the newest posts containing all of its terms, found by
+ * walking the shortest list from its end and looking the IDs up in the
+ * others. The index is rebuilt at startup by tokenizing ranges of posts on
+ * parallel threads and appending their lists in order.
+ *
+ * @author Felix Eckert
+ */
+public class PostIndex {
+	static final int MIN_TERM_LENGTH = 2;
+	static final int MAX_TERM_LENGTH = 32;
+	private static final int MIN_POSTS_PER_THREAD = 4096;
+
+	private final ConcurrentHashMap<String, Postings> terms = new ConcurrentHashMap<>();
+	private int indexed = 0; // Posts up to this ID (exclusive) are indexed
+
+	/**
+	 * Indexes all posts of the store, using up to one thread per processor.
+	 *
+	 * @param store The posts
+	 * @return The index
+	 */
+	public static PostIndex build(PostStore store) {
+		PostIndex index = new PostIndex();
+		int size = store.size();
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_POSTS_PER_THREAD));
+
+		// Tokenize ranges of posts in parallel
+		TermTable[] ranges = new TermTable[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int range = t;
+			int from = (int) ((long) size * t / threads);
+			int to = (int) ((long) size * (t + 1) / threads);
+			workers[t] = Threads.create(() -> ranges[range] = tokenizeRange(store, from, to), "JERAN:PIDX-" + t);
+			workers[t].start();
+		}
+
+		// Append the lists of the ranges in order, keeping them sorted
+		for (int t = 0; t < threads; t++) {
+			try {
+				workers[t].join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+			TermTable range = ranges[t];
+			for (int i = 0; i < range.terms.length; i++) {
+				if (range.terms[i] != null) index.terms.computeIfAbsent(range.terms[i], (k) -> new Postings()).addAll(range.lists[i]);
+			}
+			ranges[t] = null;
+		}
+		index.indexed = size;
+		return index;
+	}
+
+	private static TermTable tokenizeRange(PostStore store, int from, int to) {
+		TermTable range = new TermTable();
+		for (int id = from; id < to; id++) {
+			int post = id;
+			Posts.Post p = store.get(id);
+			TermSink sink = (text, start, end, hash) -> range.get(text, start, end, hash).add(post);
+			scan(p.getTitle(), sink);
+			scan(p.getText(), sink);
+		}
+		return range;
+	}
+
+	/**
+	 * Indexes the posts of the store which are not indexed yet.
+	 *
+	 * @param store The store the index was built from
+	 */
+	public synchronized void update(PostStore store) {
+		for (int size = store.size(); indexed < size; indexed++) {
+			tokenize(store.get(indexed), (term) -> terms.computeIfAbsent(term, (k) -> new Postings()).add(indexed));
+		}
+	}
+
+	/**
+	 * Finds the newest posts containing all terms of the query.
+	 *
+	 * @param query Terms separated by anything but letters and digits
+	 * @param limit Maximum amount of results
+	 * @return IDs of the posts, newest first
+	 */
+	public int[] search(String query, int limit) {
+		HashSet<String> queryTerms = new HashSet<>();
+		tokenize(query, queryTerms::add);
+		if (queryTerms.isEmpty() || limit <= 0) return new int[0];
+
+		// Snapshot of each list, the shortest one first
+		int[][] lists = new int[queryTerms.size()][];
+		int[] sizes = new int[lists.length];
+		int i = 0;
+		for (String term : queryTerms) {
+			Postings postings = terms.get(term);
+			if (postings == null) return new int[0];
+			sizes[i] = postings.size;
+			lists[i++] = postings.ids;
+		}
+		for (int a = 1; a < lists.length; a++) {
+			for (int b = a; b > 0 && sizes[b] < sizes[b - 1]; b--) {
+				int[] list = lists[b]; lists[b] = lists[b - 1]; lists[b - 1] = list;
+				int size = sizes[b]; sizes[b] = sizes[b - 1]; sizes[b - 1] = size;
+			}
+		}
+
+		// Walk the shortest list from the newest post, the others only get searched below the last match
+		int[] results = new int[Math.min(limit, sizes[0])];
+		int found = 0;
+		int[] bounds = sizes.clone();
+		candidates:
+		for (int c = sizes[0] - 1; c >= 0 && found < results.length; c--) {
+			int id = lists[0][c];
+			for (int l = 1; l < lists.length; l++) {
+				int at = Arrays.binarySearch(lists[l], 0, bounds[l], id);
+				if (at < 0) {
+					bounds[l] = -at - 1;
+					continue candidates;
+				}
+				bounds[l] = at;
+			}
+			results[found++] = id;
+		}
+		return Arrays.copyOf(results, found);
+	}
+
+	/**
+	 * @return Amount of distinct terms
+	 */
+	public int getTerms() {
+		return terms.size();
+	}
+
+	/**
+	 * @return Amount of indexed posts
+	 */
+	public synchronized int getIndexed() {
+		return indexed;
+	}
+
+	private static void tokenize(Posts.Post post, Consumer<String> out) {
+		tokenize(post.getTitle(), out);
+		tokenize(post.getText(), out);
+	}
+
+	// Splits a text into lower case terms, which may repeat
+	static void tokenize(String text, Consumer<String> out) {
+		scan(text, (t, start, end, hash) -> out.accept(lowerCase(t, start, end)));
+	}
+
+	// Finds the terms of a text, the hash is the hashCode() of the lower case term
+	private static void scan(String text, TermSink sink) {
+		int length = text.length();
+		int start = -1;
+		int hash = 0;
+		for (int i = 0; i <= length; i++) {
+			char c = i < length ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (start < 0) {
+					start = i;
+					hash = 0;
+				}
+				hash = 31 * hash + Character.toLowerCase(c);
+			} else if (start >= 0) {
+				if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH) sink.term(text, start, i, hash);
+				start = -1;
+			}
+		}
+	}
+
+	private static String lowerCase(String text, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++) chars[i] = Character.toLowerCase(text.charAt(start + i));
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s post(s), %s term(s)", getIndexed(), getTerms());
+	}
+
+	/**
+	 * Sorted post IDs of a term. Appended to by one writer at a time, the
+	 * array is replaced when it is full and the size is written last, so
+	 * readers see a consistent list without locking.
+	 */
+	private static class Postings {
+		volatile int[] ids = new int[2];
+		volatile int size = 0;
+
+		// Terms may repeat within a post, IDs are only added once
+		void add(int id) {
+			if (size > 0 && ids[size - 1] == id) return;
+			int[] current = ids;
+			if (size == current.length) ids = current = Arrays.copyOf(current, current.length + (current.length >> 1) + 1);
+			current[size] = id;
+			size = size + 1;
+		}
+
+		void addAll(IntList list) {
+			int[] current = ids;
+			if (size + list.size > current.length) ids = current = Arrays.copyOf(current, size + list.size);
+			System.arraycopy(list.values, 0, current, size, list.size);
+			size = size + list.size;
+		}
+	}
+
+	// Receives the bounds and hash of the terms of a text
+	private interface TermSink {
+		void term(String text, int start, int end, int hash);
+	}
+
+	/**
+	 * Open addressing table of the terms of a range of posts while building.
+	 * Terms are looked up by their bounds in the text, so only a new term
+	 * allocates a string.
+	 */
+	private static class TermTable {
+		String[] terms = new String[1024];
+		IntList[] lists = new IntList[1024];
+		int size = 0;
+
+		IntList get(String text, int start, int end, int hash) {
+			int mask = terms.length - 1;
+			int i = (hash ^ (hash >>> 16)) & mask;
+			for (String term; (term = terms[i]) != null; i = (i + 1) & mask) {
+				if (term.hashCode() == hash && matches(term, text, start, end)) return lists[i];
+			}
+
+			IntList list = new IntList();
+			terms[i] = lowerCase(text, start, end);
+			lists[i] = list;
+			if (++size * 2 > terms.length) grow();
+			return list;
+		}
+
+		private static boolean matches(String term, String text, int start, int end) {
+			if (term.length() != end - start) return false;
+			for (int i = 0; i < term.length(); i++) {
+				if (term.charAt(i) != Character.toLowerCase(text.charAt(start + i))) return false;
+			}
+			return true;
+		}
+
+		private void grow() {
+			String[] oldTerms = terms;
+			IntList[] oldLists = lists;
+			terms = new String[oldTerms.length << 1];
+			lists = new IntList[oldLists.length << 1];
+			int mask = terms.length - 1;
+			for (int j = 0; j < oldTerms.length; j++) {
+				if (oldTerms[j] == null) continue;
+				int hash = oldTerms[j].hashCode();
+				int i = (hash ^ (hash >>> 16)) & mask;
+				while (terms[i] != null) i = (i + 1) & mask;
+				terms[i] = oldTerms[j];
+				lists[i] = oldLists[j];
+			}
+		}
+	}
+
+	/**
+	 * Growing int array used while building.
+	 */
+	private static class IntList {
+		int[] values = new int[2];
+		int size = 0;
+
+		void add(int value) {
+			if (size > 0 && values[size - 1] == value) return;
+			if (size == values.length) values = Arrays.copyOf(values, values.length << 1);
+			values[size++] = value;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.security.UserVerifier;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the posts in the {@link Posts#POST_HISTORY}.
+ * <p>
+ * The journal remembers up to which post ID everything is written (the
+ * checkpoint). Every run of the PostSaveService appends the posts added
+ * since, as one batch followed by a single fsync (group commit), so the
+ * cost of a save depends on the new posts and not on the whole history.
+ * <p>
+ * Every record is prefixed with its length and a CRC32 of its body. When
+ * the journal is opened at startup it is streamed back into the store. A
+ * torn record at the end of the journal (crash during a save) is cut off,
+ * any other damage is left alone: a copy of the journal is kept next to it
+ * and opening fails, so no post after the damage is silently dropped.
+ *
+ * @author Felix Eckert
+ */
+public class PostJournal {
+	public static final String FILE_NAME = "posts.journal";
+	static final int MAX_RECORD_LENGTH = 1 << 20;
+
+	private static final Logger LOGGER = Logger.create("JERAN:PJRN");
+
+	private final File file;
+	private FileChannel channel;
+	private int records = 0;
+	private volatile int checkpoint = 0;
+
+	public PostJournal(File directory) {
+		this.file = new File(directory, FILE_NAME);
+	}
+
+	/**
+	 * Loads the posts of the journal into the store and opens the journal
+	 * for appending, a torn record at the end is cut off.
+	 *
+	 * @param store An empty store
+	 * @throws IOException If the journal is damaged anywhere but at its end,
+	 *                     a copy of it is kept as ".corrupt-" plus the time
+	 */
+	public synchronized void open(PostStore store) throws IOException {
+		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+			throw new IOException("Failed to create " + file.getParentFile());
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		long valid = 0;
+		long size = channel.size();
+		IOException damage = null;
+		boolean torn = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			while (valid < size) {
+				byte[] body;
+				try {
+					body = read(in);
+				} catch (IOException e) {
+					damage = e;
+					torn = isTornTail(valid, size);
+					break;
+				}
+				try {
+					store.add(decode(body, store));
+				} catch (IOException e) { // A complete record which makes no sense is never torn
+					damage = e;
+					break;
+				}
+				valid += 8 + body.length;
+				records++;
+			}
+		}
+
+		if (damage != null && !torn) {
+			channel.close();
+			channel = null;
+			File copy = new File(file.getPath() + ".corrupt-" + System.currentTimeMillis());
+			Files.copy(file.toPath(), copy.toPath());
+			LOGGER.errf("Post journal is damaged at offset %s of %s (%s), kept a copy as %s!\n", valid, size, damage, copy);
+			throw new IOException("Post journal is damaged at offset " + valid, damage);
+		}
+		if (damage != null) {
+			LOGGER.warnf("Cut off %s byte(s) of torn post journal at offset %s (%s)!\n", size - valid, valid, damage);
+			channel.truncate(valid);
+			channel.force(true);
+		}
+		channel.position(valid);
+		checkpoint = store.size();
+	}
+
+	/**
+	 * A record which fails to read is torn if it is the last one: it is cut
+	 * short by the end of the file, or the rest of the file is zeros (space
+	 * the file system allocated before the crash).
+	 */
+	private boolean isTornTail(long offset, long size) throws IOException {
+		if (size - offset < 8) return true;
+
+		ByteBuffer header = ByteBuffer.allocate(4);
+		channel.read(header, offset);
+		int length = header.getInt(0);
+		if (length > 0 && length <= MAX_RECORD_LENGTH) return offset + 8 + length >= size;
+
+		ByteBuffer rest = ByteBuffer.allocate(1 << 16);
+		for (long position = offset; position < size; position += rest.limit()) {
+			rest.clear();
+			if (channel.read(rest, position) <= 0) break;
+			rest.flip();
+			while (rest.hasRemaining()) {
+				if (rest.get() != 0) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Amount of posts in the journal
+	 */
+	public synchronized int getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return The journal file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return Length of the journal up to the last written post, the journal
+	 *         is only appended to so this part of the file does not change
+	 */
+	public synchronized long getLength() throws IOException {
+		return channel == null ? 0 : channel.position();
+	}
+
+	/**
+	 * @return ID up to which (exclusive) all posts are written
+	 */
+	public int getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * @return If the store holds posts which are not written yet
+	 */
+	public boolean isDirty(PostStore store) {
+		return store.size() > checkpoint;
+	}
+
+	/**
+	 * Writes all posts of the store after the checkpoint and forces them to disk.
+	 *
+	 * @return Amount of posts written
+	 */
+	public synchronized int commit(PostStore store) throws IOException {
+		int from = checkpoint;
+		int to = store.size();
+		if (to <= from || channel == null) return 0;
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(256 * (to - from));
+		for (int id = from; id < to; id++) batch.write(encode(store.get(id)));
+
+		ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+		while (buffer.hasRemaining()) channel.write(buffer);
+		channel.force(false);
+		records += to - from;
+		checkpoint = to;
+		return to - from;
+	}
+
+	public synchronized void close() {
+		try {
+			if (channel != null) channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+	}
+
+	// Reads the body of the next record and verifies its checksum
+	static byte[] read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int checksum = in.readInt();
+		if (length <= 0 || length > MAX_RECORD_LENGTH) throw new IOException("Invalid record length " + length);
+
+		byte[] body = new byte[length];
+		in.readFully(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != checksum) throw new IOException("Record checksum mismatch");
+		return body;
+	}
+
+	static byte[] encode(Posts.Post post) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0); // Length and checksum, filled in below
+		out.writeInt(0);
+
+		out.writeInt(post.getId());
+		out.writeInt(post instanceof Posts.ResponsePost ? ((Posts.ResponsePost) post).originalPost.getId() : -1);
+		out.writeBoolean(post.getSaveable());
+		UUID poster = post.getPoster();
+		out.writeBoolean(poster != null);
+		if (poster != null) {
+			out.writeLong(poster.getMostSignificantBits());
+			out.writeLong(poster.getLeastSignificantBits());
+		}
+		out.writeBoolean(post.getVerifier() != null);
+		if (post.getVerifier() != null) {
+			out.writeUTF(post.getVerifier().getName());
+			out.writeUTF(post.getVerifier().getUuid());
+		}
+		out.writeUTF(post.getDateTime());
+		writeString(out, post.getTitle());
+		writeString(out, post.getText());
+
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, record.capacity() - 8);
+		record.putInt(0, record.capacity() - 8).putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	// Decodes a post, replies are linked to their original post in the store
+	static Posts.Post decode(byte[] body, PostStore store) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(body);
+		String title, text, dateTime;
+		int id, original;
+		boolean saveable;
+		UUID poster;
+		UserVerifier verifier;
+		try {
+			id = in.getInt();
+			original = in.getInt();
+			saveable = in.get() != 0;
+			poster = in.get() != 0 ? new UUID(in.getLong(), in.getLong()) : null;
+			verifier = in.get() != 0 ? new UserVerifier(readUTF(in), readUTF(in)) : null;
+			dateTime = readUTF(in);
+			title = readString(in);
+			text = readString(in);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("Truncated post " + store.size(), e);
+		}
+
+		if (id != store.size()) throw new IOException("Expected post " + store.size() + " but found " + id);
+		if (original >= id) throw new IOException("Post " + id + " replies to unknown post " + original);
+		return original < 0 ? new Posts.Post(poster, title, text, saveable, verifier, dateTime)
+				: new Posts.ResponsePost(store.get(original), poster, title, text, saveable, verifier, dateTime);
+	}
+
+	// Strings of any length, writeUTF is limited to 64KB
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+
+	// Strings of writeUTF, which only differ from UTF-8 outside of ASCII
+	private static String readUTF(ByteBuffer in) throws IOException {
+		int start = in.position();
+		int length = in.getShort() & 0xFFFF;
+		byte[] bytes = in.array();
+		for (int i = start + 2; i < start + 2 + length; i++) {
+			if (bytes[i] < 0) {
+				in.position(start + 2 + length);
+				return new DataInputStream(new ByteArrayInputStream(bytes, start, length + 2)).readUTF();
+			}
+		}
+		in.position(start + 2 + length);
+		return new String(bytes, start + 2, length, StandardCharsets.ISO_8859_1);
+	}
+}
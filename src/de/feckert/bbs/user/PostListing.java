@@ -0,0 +1,142 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Main;
+import de.feckert.bbs.Util;
+import de.feckert.bbs.net.FrameCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders the post list of the "posts" and "recent" commands from rows
+ * which are cached on the posts, so listing posts is a concatenation of
+ * pre-encoded rows instead of formatting every row again.
+ * <p>
+ * A row is rendered again if the width of the ID column changed since
+ * (the list grew past a power of ten) or, for posts of unverified users
+ * whose name is looked up from their session, if that session closed since.
+ * Every session has its own UUID and keeps the name it chose, so only the
+ * rows of the poster which left are rendered again.
+ *
+ * @author Felix Eckert
+ */
+public class PostListing {
+	private static final byte[] NO_POSTS = "There are currently no Posts!\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] LF = {'\n'};
+
+	/**
+	 * @see Posts#generatePostList(int, int)
+	 */
+	public static String render(int startingPoint, int depth) {
+		byte[][] lines = lines(startingPoint, depth, false);
+		int length = 0;
+		for (byte[] line : lines) length += line.length;
+
+		byte[] out = new byte[length];
+		int position = 0;
+		for (byte[] line : lines) {
+			System.arraycopy(line, 0, out, position, line.length);
+			position += line.length;
+		}
+		return new String(out, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encodes the list into the frames which writing it line by line produces,
+	 * one OUTPUT frame per line followed by a terminating LF.
+	 *
+	 * @param codec Codec used by the session
+	 * @see Posts#generatePostList(int, int)
+	 */
+	public static byte[] encode(FrameCodec codec, int startingPoint, int depth) {
+		return codec.encodeAll(FrameCodec.OUTPUT, lines(startingPoint, depth, true));
+	}
+
+	/**
+	 * Encodes the rows of some posts like {@link PostListing#encode(FrameCodec, int, int)}.
+	 *
+	 * @param codec Codec used by the session
+	 * @param ids   IDs of the posts, in the order they are listed
+	 */
+	public static byte[] encode(FrameCodec codec, int[] ids) {
+		PostStore store = Posts.POST_HISTORY;
+		int size = store.size();
+		int width = width(size);
+
+		byte[][] lines = new byte[ids.length + 2][];
+		lines[0] = header(width);
+		for (int i = 0; i < ids.length; i++) lines[i + 1] = row(store.get(ids[i]), ids[i], width);
+		lines[lines.length - 1] = LF;
+		return codec.encodeAll(FrameCodec.OUTPUT, lines);
+	}
+
+	// The header and the rows, each ending with a LF, and a terminating LF if requested
+	private static byte[][] lines(int startingPoint, int depth, boolean terminated) {
+		PostStore store = Posts.POST_HISTORY;
+		int size = store.size(); // Posts added while listing are left out
+		if (size == 0) return terminated ? new byte[][] {NO_POSTS, LF} : new byte[][] {NO_POSTS};
+
+		int width = width(size);
+		int start = Math.max(0, startingPoint);
+		int end = Math.min(size, depth + 1);
+		byte[][] lines = new byte[Math.max(0, end - start) + (terminated ? 2 : 1)][];
+		if (terminated) lines[lines.length - 1] = LF;
+		lines[0] = header(width);
+
+		for (int i = start; i < end; i++) lines[i - start + 1] = row(store.get(i), i, width);
+		return lines;
+	}
+
+	// Width of the ID column
+	private static int width(int size) {
+		return Util.digitsInInt(size < 3 ? 4 : size - 1);
+	}
+
+	private static byte[] header(int width) {
+		return (Util.padToLength("ID", width, ' ') + " | " + Util.padToLength("Date-Time", 19, ' ') + " | "
+				+ Util.padToLength("Poster", 48, ' ') + " | Title\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	// The cached row of the post, rendered again if it is stale
+	private static byte[] row(Posts.Post post, int id, int width) {
+		Row row = post.listRow;
+		if (row == null || row.width != width || (!row.verified && row.online && Main.SERVER.SESSIONS.get(post.getPoster()) == null)) {
+			post.listRow = row = render(post, id, width);
+		}
+		return row.line;
+	}
+
+	private static Row render(Posts.Post post, int id, int width) {
+		StringBuilder out = new StringBuilder(128);
+		out.append(Util.padToLength(String.valueOf(id), width, ' ')).append(" | ");
+		out.append(post.getDateTime()).append(" | ");
+
+		UserSession poster = null;
+		// Use the UserVerifier information if the post has it, else the "temp" user information
+		if (post.getVerifier() != null) {
+			out.append("V ").append(post.getVerifier()).append(" | ");
+		} else {
+			poster = Main.SERVER.SESSIONS.get(post.getPoster());
+			out.append("N ").append(poster != null ? poster.getName() : "unknown")
+					.append(" (").append(post.getPoster()).append(") | ");
+		}
+		out.append(post.getTitle()).append('\n');
+		return new Row(width, post.getVerifier() != null, poster != null, out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * A rendered row of the list.
+	 */
+	static final class Row {
+		final int width;
+		final boolean verified; // Rows of verified posts do not depend on sessions
+		final boolean online; // If the name was taken from the session of the poster
+		final byte[] line;
+
+		Row(int width, boolean verified, boolean online, byte[] line) {
+			this.width = width;
+			this.verified = verified;
+			this.online = online;
+			this.line = line;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Memoizes the rendering of posts for the "read" command as UTF-8 lines,
+ * so reading a post is a single encoding of the cached lines into frames.
+ * <p>
+ * Posts do not change after they are created, only the name of an
+ * unverified author is looked up from its session. When that name changes,
+ * only the renderings of the posts of that author are dropped, which are
+ * found through an index of the cached posts by author, see
+ * {@link PostRenderCache#posterChanged(UUID)}.
+ * <p>
+ * The cache is bounded by the size of the renderings, the least recently
+ * read posts are evicted first. Hits and misses are counted in the
+ * {@link Metrics} as readcache.hit and readcache.miss.
+ *
+ * @author Felix Eckert
+ */
+public class PostRenderCache {
+	private static final byte[] LF = {'\n'};
+	private static final int ENTRY_OVERHEAD = 64; // Map entry, arrays and key, roughly
+
+	private final long capacity;
+	private final LinkedHashMap<Posts.Post, byte[][]> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private final HashMap<UUID, ArrayList<Posts.Post>> byPoster = new HashMap<>(); // Cached posts of unverified authors
+	private long size = 0;
+	private long generation = 0; // Counts invalidations, renderings started before one are not cached
+
+	/**
+	 * @param capacity Maximum size of all renderings in bytes, 0 disables the cache
+	 */
+	public PostRenderCache(long capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * @param post The post to be read
+	 * @return The lines of the post, each ending with a LF, followed by a terminating LF,
+	 *         which must not be modified
+	 */
+	public byte[][] get(Posts.Post post) {
+		long started;
+		synchronized (this) {
+			byte[][] lines = entries.get(post);
+			if (lines != null) {
+				Metrics.increment("readcache.hit");
+				return lines;
+			}
+			started = generation;
+		}
+		Metrics.increment("readcache.miss");
+
+		byte[][] lines = render(post);
+		long length = length(lines);
+		synchronized (this) {
+			if (started == generation && length <= capacity && !entries.containsKey(post)) {
+				entries.put(post, lines);
+				if (dependsOnSession(post)) byPoster.computeIfAbsent(post.getPoster(), (poster) -> new ArrayList<>(2)).add(post);
+				size += length;
+				evict();
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Drops the renderings of the unverified posts of a session, e.g. because
+	 * their author is shown as "unknown" once it disconnected.
+	 *
+	 * @param poster UUID of the session
+	 */
+	public synchronized void posterChanged(UUID poster) {
+		generation++;
+		ArrayList<Posts.Post> posts = byPoster.remove(poster);
+		if (posts == null) return;
+		for (Posts.Post post : posts) {
+			byte[][] lines = entries.remove(post);
+			if (lines != null) size -= length(lines);
+		}
+	}
+
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+		byPoster.clear();
+		size = 0;
+	}
+
+	// Drops the least recently read posts until the cache fits
+	private void evict() {
+		Iterator<Map.Entry<Posts.Post, byte[][]>> it = entries.entrySet().iterator();
+		while (size > capacity && it.hasNext()) {
+			Map.Entry<Posts.Post, byte[][]> entry = it.next();
+			Posts.Post post = entry.getKey();
+			size -= length(entry.getValue());
+			it.remove();
+			if (dependsOnSession(post)) unindex(post);
+		}
+	}
+
+	private void unindex(Posts.Post post) {
+		ArrayList<Posts.Post> posts = byPoster.get(post.getPoster());
+		if (posts == null) return;
+		posts.remove(post);
+		if (posts.isEmpty()) byPoster.remove(post.getPoster());
+	}
+
+	// If the rendering shows the name of the session of the author
+	private static boolean dependsOnSession(Posts.Post post) {
+		return post.getVerifier() == null && post.getPoster() != null;
+	}
+
+	private static byte[][] render(Posts.Post post) {
+		String[] text = post.toString().split("\n");
+		byte[][] lines = new byte[text.length + 1][];
+		for (int i = 0; i < text.length; i++) lines[i] = (text[i] + "\n").getBytes(StandardCharsets.UTF_8);
+		lines[text.length] = LF;
+		return lines;
+	}
+
+	private static long length(byte[][] lines) {
+		long length = ENTRY_OVERHEAD;
+		for (byte[] line : lines) length += 16 + line.length;
+		return length;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s post(s), %s/%s byte(s), %s hit(s), %s miss(es)",
+				entries.size(), size, capacity, Metrics.get("readcache.hit"), Metrics.get("readcache.miss"));
+	}
+}
@@ -0,0 +1,89 @@
+package de.feckert.bbs.user;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only store of the posts, which can be appended to from any
+ * thread and read without locks.
+ * <p>
+ * Posts are held in segments which double in size (1024, 2048, 4096, ...),
+ * so the store grows without copying and the segment and slot of an ID are
+ * found with a few bit operations. IDs are taken from an atomic counter,
+ * a post becomes visible to readers once it and all posts before it are
+ * stored, so readers never see a gap. Writers never wait for each other,
+ * the writer storing the missing post publishes the ones after it.
+ *
+ * @author Felix Eckert
+ */
+public class PostStore {
+	private static final int FIRST_SEGMENT_BITS = 10;
+	private static final int FIRST_SEGMENT_SIZE = 1 << FIRST_SEGMENT_BITS;
+	private static final int SEGMENTS = 31 - FIRST_SEGMENT_BITS;
+
+	private final AtomicReferenceArray<AtomicReferenceArray<Posts.Post>> segments = new AtomicReferenceArray<>(SEGMENTS);
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Stores a post and assigns its ID.
+	 *
+	 * @param post The post, which must not be in a store yet
+	 * @return The ID of the post
+	 */
+	public int add(Posts.Post post) {
+		int id = nextId.getAndIncrement();
+		if (id < 0 || id >= Integer.MAX_VALUE - FIRST_SEGMENT_SIZE) throw new IllegalStateException("PostStore is full!");
+		post.id = id;
+
+		int segment = segment(id);
+		AtomicReferenceArray<Posts.Post> posts = segments.get(segment);
+		if (posts == null) {
+			segments.compareAndSet(segment, null, new AtomicReferenceArray<>(FIRST_SEGMENT_SIZE << segment));
+			posts = segments.get(segment);
+		}
+		posts.set(offset(id, segment), post);
+
+		// Publish every stored post following the visible ones
+		for (int visible = size.get(); visible < nextId.get() && slot(visible) != null; visible = size.get()) {
+			size.compareAndSet(visible, visible + 1);
+		}
+		return id;
+	}
+
+	/**
+	 * @param id ID of the post
+	 * @return The post
+	 * @throws IndexOutOfBoundsException If there is no post with the ID
+	 */
+	public Posts.Post get(int id) {
+		if (id < 0 || id >= size.get()) throw new IndexOutOfBoundsException("No post with ID " + id);
+		return slot(id);
+	}
+
+	/**
+	 * @return Amount of visible posts, IDs are 0 to size - 1
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	// The post stored under the ID, NULL if it is not stored yet
+	private Posts.Post slot(int id) {
+		int segment = segment(id);
+		AtomicReferenceArray<Posts.Post> posts = segments.get(segment);
+		return posts == null ? null : posts.get(offset(id, segment));
+	}
+
+	private static int segment(int id) {
+		return 31 - Integer.numberOfLeadingZeros(id + FIRST_SEGMENT_SIZE) - FIRST_SEGMENT_BITS;
+	}
+
+	private static int offset(int id, int segment) {
+		return id + FIRST_SEGMENT_SIZE - (FIRST_SEGMENT_SIZE << segment);
+	}
+}
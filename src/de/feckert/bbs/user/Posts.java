@@ -2,45 +2,102 @@ package de.feckert.bbs.user;
 
 import de.feckert.bbs.Logger;
 import de.feckert.bbs.Main;
+import de.feckert.bbs.Threads;
 import de.feckert.bbs.Util;
 import de.feckert.bbs.security.UserVerifier;
 
 import java.io.*;
-import java.util.ArrayList;
 import java.util.UUID;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class Posts {
-	public  static       ArrayList<Post>		  POST_HISTORY        = new ArrayList<>();
-	private static final ScheduledExecutorService SCHEDULED_EXECUTER  = Executors.newSingleThreadScheduledExecutor();
+	public  static       PostStore				  POST_HISTORY        = new PostStore();
+	private static       ScheduledExecutorService SCHEDULED_EXECUTER  = null;
 	private static       ScheduledFuture<?> 	  POST_SAVING_SERVICE = null;
 	public  static       File  					  POST_SAVE_DIRECTORY;
 	private static final Logger				      POST_MANAGER_LOGGER = Logger.create("JERAN:POST");
-	private static       String					  LAST_POST_SAVE      = "";
+	private static volatile PostJournal		  JOURNAL             = null; // Published after the POST_HISTORY it belongs to
+	private static       ScheduledExecutorService BACKUP_EXECUTER     = null;
+	public  static       PostRenderCache		  READ_CACHE          = new PostRenderCache(8 << 20);
+	public  static       PostIndex				  SEARCH_INDEX        = new PostIndex();
+	public  static       int					  SEARCH_RESULTS      = 20; // Results listed per search
+	private static       ScheduledFuture<?> 	  BACKUP_SERVICE      = null;
 
 	/**
 	 * Sets up the PostSaveService which periodically and on shutdown
-	 * saves all currently registered posts to file.
+	 * appends the posts created since the last save to the {@link PostJournal}.
 	 *
 	 * @param period The Amount of time between each save
 	 * @param timeUnitName The Time Unit for the period
 	 * */
 	public static void setupPostSaveService(long period, String timeUnitName) {
 		POST_MANAGER_LOGGER.info("Setting up PostSaveService...");
+		if (SCHEDULED_EXECUTER == null) SCHEDULED_EXECUTER = Threads.newScheduledExecutor("JERAN:PSSE");
+
 		POST_SAVING_SERVICE = SCHEDULED_EXECUTER.scheduleAtFixedRate(new PostSaveServiceThread(false), period, period, TimeUnit.valueOf(timeUnitName));
 		Runtime.getRuntime().addShutdownHook(new PostSaveServiceThread(true));
 
 		// FOR DEBUGGING PURPOSES, REMOVE FOR RELEASE
-		if (Main.DEBUG) {
+		// Only seeds an empty history, the posts are journaled like any other
+		if (Main.DEBUG && POST_HISTORY.size() == 0) {
 			for (int i = 0; i < 50; i++) {
-				new Post(UUID.randomUUID(), "Post " + i, "Test Post", true, null);
+				add(new Post(UUID.randomUUID(), "Post " + i, "Test Post", true, null));
 			}
 		}
 	}
 
+	/**
+	 * Sets up the backup service which periodically backs up the {@link PostJournal}
+	 * and deletes old backups, on its own thread so it does not delay post saves.
+	 *
+	 * @param period       The Amount of time between each backup, 0 disables backups
+	 * @param timeUnitName The Time Unit for the period
+	 * @param backups      Backups and their retention
+	 */
+	public static void setupBackupService(long period, String timeUnitName, PostBackups backups) {
+		if (period <= 0) return;
+		POST_MANAGER_LOGGER.info("Setting up PostBackupService...");
+		if (BACKUP_EXECUTER == null) BACKUP_EXECUTER = Threads.newScheduledExecutor("JERAN:PBSE");
+
+		BACKUP_SERVICE = BACKUP_EXECUTER.scheduleAtFixedRate(() -> {
+			PostJournal journal = JOURNAL;
+			if (journal != null) backups.run(journal);
+		}, period, period, TimeUnit.valueOf(timeUnitName));
+	}
+
+	/**
+	 * Loads the posts from the {@link PostJournal} in the {@link Posts#POST_SAVE_DIRECTORY}
+	 * into a new {@link Posts#POST_HISTORY}, a missing journal is restored from the
+	 * latest {@link PostBackups backup}. Posts of a previous load which are not
+	 * saved yet (e.g. on restart) are saved first.
+	 */
+	public static void loadPosts() {
+		long start = System.currentTimeMillis();
+		closeJournal();
+
+		PostStore store = new PostStore();
+		PostJournal journal = new PostJournal(POST_SAVE_DIRECTORY);
+		try {
+			if (!journal.getFile().exists()) PostBackups.restoreLatest(POST_SAVE_DIRECTORY);
+			journal.open(store);
+			POST_MANAGER_LOGGER.infof("Loaded %s Post(s) in %sms!\n", store.size(), System.currentTimeMillis() - start);
+		} catch (IOException e) {
+			POST_MANAGER_LOGGER.err("Failed to open the post journal, posts will not be saved!");
+			e.printStackTrace();
+			journal = null;
+		}
+		start = System.currentTimeMillis();
+		PostIndex index = PostIndex.build(store);
+		POST_MANAGER_LOGGER.infof("Indexed %s Post(s) in %sms! [%s terms]\n", store.size(), System.currentTimeMillis() - start, index.getTerms());
+
+		POST_HISTORY = store;
+		SEARCH_INDEX = index;
+		READ_CACHE.clear();
+		JOURNAL = journal;
+	}
+
 	/**
 	 * Resets the PostHandler to its initial State when it
 	 * is loaded into the JRE.
@@ -48,11 +105,27 @@ public class Posts {
 	public void reset() {
 		POST_MANAGER_LOGGER.info("Resetting PostHandler!");
 		POST_SAVING_SERVICE.cancel(false);
-		POST_HISTORY.clear();
-		LAST_POST_SAVE = "";
+		if (BACKUP_SERVICE != null) BACKUP_SERVICE.cancel(false);
+		closeJournal();
+		POST_HISTORY = new PostStore();
+		SEARCH_INDEX = new PostIndex();
 		POST_SAVE_DIRECTORY = null;
 	}
 
+	// Saves the posts which are not saved yet and closes the journal
+	private static void closeJournal() {
+		PostJournal journal = JOURNAL;
+		if (journal == null) return;
+		JOURNAL = null;
+		try {
+			journal.commit(POST_HISTORY);
+		} catch (IOException e) {
+			POST_MANAGER_LOGGER.err("Failed to save Post-History (IOException)");
+			e.printStackTrace();
+		}
+		journal.close();
+	}
+
 	private static class PostSaveServiceThread extends Thread {
 		private boolean asShutdownHook;
 
@@ -62,38 +135,20 @@ public class Posts {
 		}
 
 		@Override
-		@SuppressWarnings("ResultOfMethodCallIgnored")
 		public void run() {
-			String[] out = {""};
-
 			if (asShutdownHook) POST_MANAGER_LOGGER.info("Executing PostSaveService ShutdownHook!");
+			PostJournal journal = JOURNAL;
+			if (journal == null) return;
 
-			// File Name Format: POST BACKUP-YYYY-MM-DD-HH-MM-SS.txt
-			String fileName = "POST BACKUP-"+Util.getDateTimeString().
-					replaceAll("[_/: ]","-")+".txt";
-
-			// Create File Content
-			POST_HISTORY.forEach((v) -> out[0] += v.toString()+"\n");
-			if (LAST_POST_SAVE.matches(out[0])) {
-				POST_MANAGER_LOGGER.info("Averted Post-Save because post history is identical!");
+			if (!journal.isDirty(POST_HISTORY)) {
+				POST_MANAGER_LOGGER.info("Averted Post-Save because there are no new posts!");
 				return;
 			}
-			LAST_POST_SAVE = out[0];
 
-			POST_MANAGER_LOGGER.info("Starting Post-Save!");
-
-			// Write File
+			// Append the new posts to the journal
 			try {
-				if (!POST_SAVE_DIRECTORY.exists()) POST_SAVE_DIRECTORY.mkdirs();
-				File outFile      = new File(POST_SAVE_DIRECTORY, fileName);
-				if (!outFile.createNewFile()) {
-					throw new IOException("Failed to create Post-File! ["+outFile.getAbsolutePath()+"]");
-				}
-
-				FileWriter myWriter = new FileWriter(outFile);
-				myWriter.write(out[0]);
-				myWriter.close();
-				POST_MANAGER_LOGGER.infof("Successfully saved Posts! [%s]\n", fileName);
+				int saved = journal.commit(POST_HISTORY);
+				POST_MANAGER_LOGGER.infof("Successfully saved %s new Post(s)! [%s posts saved]\n", saved, journal.getCheckpoint());
 			} catch (IOException e) {
 				POST_MANAGER_LOGGER.err("Failed to save Post-History (IOException)");
 				e.printStackTrace();
@@ -101,6 +156,28 @@ public class Posts {
 		}
 	}
 
+	/**
+	 * Adds a post to the {@link Posts#POST_HISTORY} and the {@link Posts#SEARCH_INDEX}.
+	 *
+	 * @param post The new post
+	 * @return The ID of the post
+	 */
+	public static int add(Post post) {
+		int id = POST_HISTORY.add(post);
+		SEARCH_INDEX.update(POST_HISTORY);
+		return id;
+	}
+
+	/**
+	 * Called when the name shown for the posts of an unverified poster
+	 * changes, i.e. when its session is closed.
+	 *
+	 * @param poster UUID of the session
+	 */
+	public static void posterChanged(UUID poster) {
+		READ_CACHE.posterChanged(poster);
+	}
+
 	/**
 	 * Constructs a nicely formatted list of all currently loaded posts.
 	 *
@@ -109,36 +186,7 @@ public class Posts {
 	 * @return A nicely formatted post list
 	 */
 	public static String generatePostList(int startingPoint, int depth) {
-		if (POST_HISTORY.size() == 0) return "There are currently no Posts!\n";
-
-		// Create Table Header
-		StringBuilder out = new StringBuilder(Util.padToLength("ID", Util.digitsInInt(POST_HISTORY.size() < 3 ? 4 : POST_HISTORY.size() - 1), ' ') + " | ");
-		out.append(Util.padToLength("Date-Time", 19, ' ')).append(" | ");
-		out.append(Util.padToLength("Poster", 48, ' ')).append(" | ");
-		out.append("Title\n");
-
-		Post v; // Construct list below
-		for (int i = startingPoint; i < POST_HISTORY.size() && i < depth + 1; i++) {
-			v = POST_HISTORY.get(i);
-
-			// Format Post ID
-			out.append(Util.padToLength(String.valueOf(i), Util.digitsInInt(POST_HISTORY.size() < 3 ? 4 : POST_HISTORY.size() - 1), ' '));
-			out.append(" | ");
-
-			// Date-Time String
-			out.append(v.getDateTime()).append(" | ");
-
-			// Format Poster Information
-			if (v.getVerifier() != null) { // Use the UserVerifier information if the post has it
-				out.append("V ").append(v.getVerifier().toString()).append(" | ");
-			} else { // Else use the "temp" user information
-				out.append("N ").append(String.format("%s (%s)", Main.SERVER.USERS.containsKey(v.getPoster()) ?
-						Main.SERVER.USERS.get(v.getPoster()).getName() : "unknown", v.getPoster())).append(" | ");
-			}
-			out.append(v.getTitle()).append("\n");
-		}
-
-		return out.toString();
+		return PostListing.render(startingPoint, depth);
 	}
 
 	/**
@@ -146,39 +194,48 @@ public class Posts {
 	 * Runtime.
 	 * */
 	public static class Post {
+		private static final String SEPARATOR = "==============================";
+
 		protected String title;
 		protected String text;
 		protected UUID poster;
 		protected boolean saveable;
 		protected String dateTime;
-		protected int id;
+		protected int id = -1; // Assigned by the PostStore
 		protected UserVerifier verifier;
+		volatile PostListing.Row listRow; // Cached row of the post list
 
+		/**
+		 * Creates a post, which gets its ID once it is added to the {@link Posts#POST_HISTORY}.
+		 */
 		public Post(UUID poster, String title, String text, boolean saveable, UserVerifier verifier) {
+			this(poster, title, text, saveable, verifier, Util.getDateTimeString());
+		}
+
+		// Restores a post of the PostJournal
+		Post(UUID poster, String title, String text, boolean saveable, UserVerifier verifier, String dateTime) {
 			this.title = title;
 			this.text = text;
 			this.poster = poster;
 			this.saveable = saveable;
-			this.dateTime = Util.getDateTimeString();
-			POST_HISTORY.add(this);
-			this.id = POST_HISTORY.indexOf(this);
+			this.dateTime = dateTime;
 			this.verifier = verifier;
 		}
 
 		@Override
 		public String toString() {
-			String out = "==============================\n";
-			out += title + "\n";
-			if (verifier != null) {
-				out += "Author: " + verifier + "\n";
-			} else {
-				out += "Author: " + Main.SERVER.getUserName(poster) + "\n";
-			}
-			out += "Posted on: " + dateTime + "\n\n";
-			out += text;
-			out += "\n==============================";
+			StringBuilder out = new StringBuilder(128 + title.length() + text.length());
+			out.append(SEPARATOR).append('\n');
+			appendTitle(out);
+			out.append("Author: ").append(verifier != null ? verifier.toString() : Main.SERVER.getUserName(poster)).append('\n');
+			out.append("Posted on: ").append(dateTime).append("\n\n");
+			out.append(text);
+			out.append('\n').append(SEPARATOR);
+			return out.toString();
+		}
 
-			return out;
+		protected void appendTitle(StringBuilder out) {
+			out.append(title).append('\n');
 		}
 
 		public String getTitle() {
@@ -214,39 +271,13 @@ public class Posts {
 		/**
 		 * Constructs a new Post with user input.
 		 *
-		 * @param writer       The PrintWriter for the user
-		 * @param reader       The BufferedReader for the user
+		 * @param session      The session of the user
 		 * @param poster       The UUID of the user
 		 * @param userVerifier UserVerifier object to verify the identity of the poster (OPTIONAL)
 		 */
-		public static void constructPost(PrintWriter writer, BufferedReader reader, UUID poster, UserVerifier userVerifier) {
-			String postText = "";
-			String postTitle;
-			boolean saveable;
-
-			// Construct Title
-			writer.write((byte) 0x01);
-			writer.println("Post Title (30 Characters): ");
-			writer.flush();
-			postTitle = Util.requestInput(writer, reader).replace("|", "");
-
-			// Construct Body
-			writer.write((byte) 0x01);
-			writer.println("Write (type !exit! to exit):");
-			writer.flush();
-			while (true) {
-				String in = Util.requestInput(writer, reader);
-				if (in.matches("!exit!")) break;
-				postText += in + "\n";
-			}
-
-			// Ask for archival
-			writer.write((byte) 0x01);
-			writer.println("Are we allowed to archive our post (Y/N)");
-			writer.flush();
-			saveable = Util.requestInput(writer, reader).matches("Y");
-
-			new Post(poster, postTitle, postText, saveable, userVerifier);
+		public static void constructPost(UserSession session, UUID poster, UserVerifier userVerifier) {
+			new PostDialog(session, (title, text, saveable) ->
+					add(new Post(poster, title, text, saveable, userVerifier))).start();
 		}
 	}
 
@@ -258,53 +289,80 @@ public class Posts {
 			this.originalPost = originalPost;
 		}
 
+		// Restores a reply of the PostJournal
+		ResponsePost(Post originalPost, UUID poster, String title, String text, boolean saveable, UserVerifier verifier, String dateTime) {
+			super(poster, title, text, saveable, verifier, dateTime);
+			this.originalPost = originalPost;
+		}
 
-		public static void constructPost(PrintWriter writer, BufferedReader reader, UUID poster, UserVerifier userVerifier, Post originalPost) {
-			String postText = "";
-			String postTitle;
-			boolean saveable;
 
-			// Construct Title
-			writer.write((byte) 0x01);
-			writer.println("Post Title (30 Characters): ");
-			writer.flush();
-			postTitle = Util.requestInput(writer, reader).replace("|", "");
+		/**
+		 * Constructs a new Reply-Post with user input.
+		 *
+		 * @param session      The session of the user
+		 * @param poster       The UUID of the user
+		 * @param userVerifier UserVerifier object to verify the identity of the poster (OPTIONAL)
+		 * @param originalPost The Post that is being replied to
+		 */
+		public static void constructPost(UserSession session, UUID poster, UserVerifier userVerifier, Post originalPost) {
+			new PostDialog(session, (title, text, saveable) ->
+					add(new ResponsePost(originalPost, poster, title, text, saveable, userVerifier))).start();
+		}
 
-			// Construct Body
-			writer.write((byte) 0x01);
-			writer.println("Write (type !exit! to exit):");
-			writer.flush();
-			while (true) {
-				String in = Util.requestInput(writer, reader);
-				if (in.matches("!exit!")) break;
-				postText += in + "\n";
-			}
+		@Override
+		protected void appendTitle(StringBuilder out) {
+			out.append("RE [").append(originalPost.getId()).append("]: ").append(originalPost.getTitle()).append('\n');
+			out.append("Title: ").append(title).append('\n');
+		}
+	}
 
-			// Ask for archival
-			writer.write((byte) 0x01);
-			writer.println("Are we allowed to archive our post (Y/N)");
-			writer.flush();
-			saveable = Util.requestInput(writer, reader).matches("Y");
+	/**
+	 * Asks the user for the title, body and archival permission of
+	 * a new post and hands them to a {@link PostFactory} once complete.
+	 * */
+	private static class PostDialog {
+		private final UserSession session;
+		private final PostFactory factory;
+		private final StringBuilder postText = new StringBuilder();
+		private String postTitle;
+
+		PostDialog(UserSession session, PostFactory factory) {
+			this.session = session;
+			this.factory = factory;
+		}
 
-			new ResponsePost(originalPost, poster, postTitle, postText, saveable, userVerifier);
+		void start() {
+			// Construct Title
+			session.printLine("Post Title (30 Characters): ");
+			session.requestInput(this::title);
 		}
 
-		@Override
-		public String toString() {
-			String out = super.toString();
-			out = out.replace("==============================",
-					String.format("RE [%s]: %s\n", originalPost.getId(), originalPost.getTitle()));
-			out += "Title: " + title + "\n";
-			if (verifier != null) {
-				out += "Author: " + verifier + "\n";
-			} else {
-				out += "Author: " + Main.SERVER.getUserName(poster) + "\n";
+		private void title(String in) {
+			postTitle = in.replace("|", "");
+
+			// Construct Body
+			session.printLine("Write (type !exit! to exit):");
+			session.requestInput(this::body);
+		}
+
+		private void body(String in) {
+			if (in.matches("!exit!")) {
+				// Ask for archival
+				session.printLine("Are we allowed to archive our post (Y/N)");
+				session.requestInput(this::archive);
+				return;
 			}
-			out += "Posted on: " + dateTime + "\n\n";
-			out += text;
-			out += "\n==============================";
+			postText.append(in).append("\n");
+			session.requestInput(this::body);
+		}
 
-			return out;
+		private void archive(String in) {
+			factory.create(postTitle, postText.toString(), in.matches("Y"));
 		}
 	}
+
+	@FunctionalInterface
+	private interface PostFactory {
+		void create(String title, String text, boolean saveable);
+	}
 }
@@ -0,0 +1,203 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Logger;
+import de.feckert.bbs.Main;
+import de.feckert.bbs.Threads;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the lifecycle of all {@link UserSession}s. Sessions which did not
+ * send any input for the configured idle timeout (e.g. half-open sockets)
+ * are reaped using a hashed timer wheel: every session sits in the bucket
+ * of its deadline, so each tick only looks at the sessions due in it
+ * instead of scanning all sessions.
+ * <p>
+ * Every {@link SessionLifecycle#SWEEP_TICKS} ticks the {@link SessionRegistry}
+ * is swept for closed sessions which are still registered, so a session
+ * which missed its exit path does not stay registered until restart.
+ *
+ * @author Felix Eckert
+ */
+public class SessionLifecycle {
+	private static final int  WHEEL_SIZE = 512; // Has to be a power of two
+	private static final long TICK_MILLIS = 1000;
+	private static final int  SWEEP_TICKS = 60;
+
+	private final Logger LOGGER;
+	private final long timeoutMillis;
+
+	// Timer Wheel, buckets are only touched by the reaper thread
+	private final ArrayList<ArrayList<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+	private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+	private long tick = 0;
+	private ScheduledExecutorService reaper;
+
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong reaped = new AtomicLong();
+	private final AtomicLong swept = new AtomicLong();
+
+	/**
+	 * @param timeoutSeconds Seconds without input after which a session is reaped, 0 to disable reaping
+	 */
+	public SessionLifecycle(long timeoutSeconds) {
+		this.LOGGER = Logger.create("JERAN:LIFE");
+		this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+		for (int i = 0; i < WHEEL_SIZE; i++) wheel.add(new ArrayList<>());
+	}
+
+	public void start() {
+		// The reaper also sweeps the registry, so it runs even if reaping is disabled
+		reaper = Threads.newScheduledExecutor("JERAN:REAP");
+		reaper.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+		if (timeoutMillis <= 0) {
+			LOGGER.info("Idle-Session reaping disabled!");
+			return;
+		}
+		LOGGER.infof("Reaping sessions idle for more than %s second(s)!\n", TimeUnit.MILLISECONDS.toSeconds(timeoutMillis));
+	}
+
+	public void stop() {
+		if (reaper != null) reaper.shutdownNow();
+	}
+
+	/**
+	 * Starts tracking a session, called when it is created.
+	 */
+	void opened(UserSession session) {
+		if (timeoutMillis <= 0) return;
+		Entry entry = new Entry(session);
+		session.lifecycleEntry = entry;
+		pending.add(entry);
+	}
+
+	/**
+	 * Stops tracking a session, called once it terminated.
+	 */
+	void closed(UserSession session) {
+		closed.incrementAndGet();
+		if (session.lifecycleEntry != null) session.lifecycleEntry.session = null;
+		session.lifecycleEntry = null;
+	}
+
+	private void tick() {
+		try {
+			long now = System.currentTimeMillis();
+
+			// Expire sessions in the current bucket
+			Entry entry;
+			ArrayList<Entry> bucket = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+			ArrayList<Entry> rescheduled = new ArrayList<>();
+			int reapedNow = 0;
+			Iterator<Entry> iterator = bucket.iterator();
+			while (iterator.hasNext()) {
+				entry = iterator.next();
+				UserSession session = entry.session;
+				if (session == null) { // Session already terminated
+					iterator.remove();
+				} else if (entry.rounds > 0) {
+					entry.rounds--;
+				} else {
+					iterator.remove();
+					if (session.getLastActivity() + timeoutMillis <= now) {
+						session.reap();
+						reaped.incrementAndGet();
+						reapedNow++;
+					} else {
+						rescheduled.add(entry);
+					}
+				}
+			}
+			tick++;
+			for (Entry e : rescheduled) schedule(e, now);
+
+			// Add new sessions to the wheel
+			while ((entry = pending.poll()) != null) schedule(entry, now);
+
+			if (reapedNow > 0) LOGGER.infof("Reaped %s idle session(s)!\n", reapedNow);
+
+			if (tick % SWEEP_TICKS == 0) {
+				int sweptNow = Main.SERVER.SESSIONS.sweep();
+				swept.addAndGet(sweptNow);
+				if (sweptNow > 0) LOGGER.warnf("Swept %s closed session(s) which were still registered!\n", sweptNow);
+			}
+		} catch (RuntimeException e) {
+			// Keep the reaper alive, scheduleAtFixedRate stops on exceptions
+			e.printStackTrace();
+		}
+	}
+
+	private void schedule(Entry entry, long now) {
+		UserSession session = entry.session;
+		if (session == null) return;
+
+		long delay = session.getLastActivity() + timeoutMillis - now;
+		long ticks = Math.max(1, (delay + TICK_MILLIS - 1) / TICK_MILLIS);
+		entry.rounds = (ticks - 1) / WHEEL_SIZE;
+		wheel.get((int) ((tick + ticks - 1) & (WHEEL_SIZE - 1))).add(entry);
+	}
+
+	/**
+	 * @return Amount of registered sessions
+	 */
+	public int getLiveCount() {
+		return Main.SERVER.SESSIONS.size();
+	}
+
+	/**
+	 * @return Amount of registered sessions which did not send input for at least half the idle timeout
+	 */
+	public int getIdleCount() {
+		long mark = System.currentTimeMillis() - timeoutMillis / 2;
+		int[] idle = {0};
+		Main.SERVER.SESSIONS.forEach((v) -> {
+			if (v.getLastActivity() <= mark) idle[0]++;
+		});
+		return idle[0];
+	}
+
+	/**
+	 * @return Amount of sessions reaped for being idle
+	 */
+	public long getReapedCount() {
+		return reaped.get();
+	}
+
+	/**
+	 * @return Amount of closed sessions removed by a sweep of the registry
+	 */
+	public long getSweptCount() {
+		return swept.get();
+	}
+
+	/**
+	 * @return Amount of sessions which terminated, including reaped ones
+	 */
+	public long getClosedCount() {
+		return closed.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("live=%s idle=%s reaped=%s swept=%s closed=%s",
+				getLiveCount(), getIdleCount(), getReapedCount(), getSweptCount(), getClosedCount());
+	}
+
+	/**
+	 * Entry of a session in the timer wheel. The session is cleared once it
+	 * terminated, so the wheel does not keep it reachable.
+	 */
+	static class Entry {
+		volatile UserSession session;
+		long rounds;
+
+		Entry(UserSession session) {
+			this.session = session;
+		}
+	}
+}
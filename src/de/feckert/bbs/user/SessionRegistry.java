@@ -0,0 +1,133 @@
+package de.feckert.bbs.user;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Holds all connected {@link UserSession}s indexed by their UUID, their
+ * name and their remote IP. All indices are concurrent maps, so sessions
+ * can be looked up from any thread without a global lock.
+ *
+ * @author Felix Eckert
+ */
+public class SessionRegistry {
+	private final ConcurrentHashMap<UUID, UserSession> byUuid = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, UserSession> byName = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Set<UserSession>> byIP = new ConcurrentHashMap<>();
+
+	/**
+	 * Registers a newly connected session, before it is started.
+	 *
+	 * @param session The session to be registered
+	 * @return The registered session
+	 */
+	public <T extends UserSession> T register(T session) {
+		byUuid.put(session.getUuid(), session);
+		byIP.computeIfAbsent(normalizeIP(session.getIP()), (k) -> ConcurrentHashMap.newKeySet()).add(session);
+
+		// A session which terminated meanwhile already removed itself, undo the registration
+		if (session.isTerminated()) remove(session);
+		return session;
+	}
+
+	/**
+	 * Atomically reserves a name for a session.
+	 *
+	 * @param name    The name to be reserved
+	 * @param session The session reserving the name
+	 * @return If the name was free and is now reserved for the session
+	 */
+	public boolean reserveName(String name, UserSession session) {
+		return byName.putIfAbsent(name, session) == null;
+	}
+
+	/**
+	 * Removes a session from all indices, releasing its name.
+	 *
+	 * @param session The session to be removed
+	 * @return If the session was registered
+	 */
+	public boolean remove(UserSession session) {
+		if (session.getName() != null) byName.remove(session.getName(), session);
+		byIP.computeIfPresent(normalizeIP(session.getIP()), (k, v) -> {
+			v.remove(session);
+			return v.isEmpty() ? null : v;
+		});
+		return byUuid.remove(session.getUuid(), session);
+	}
+
+	/**
+	 * Removes sessions which terminated and terminates sessions whose
+	 * connection is closed, in case they missed their exit path.
+	 *
+	 * @return Amount of removed sessions
+	 */
+	public int sweep() {
+		int swept = 0;
+		for (UserSession session : byUuid.values()) {
+			if (session.isTerminated()) {
+				if (remove(session)) swept++;
+			} else if (session.isClosed()) {
+				session.terminate();
+				swept++;
+			}
+		}
+		return swept;
+	}
+
+	/**
+	 * @param uuid UUID of the User
+	 * @return The session with the UUID, NULL if not connected
+	 */
+	public UserSession get(UUID uuid) {
+		return byUuid.get(uuid);
+	}
+
+	/**
+	 * @param name Name of the User
+	 * @return The session with the name, NULL if not connected
+	 */
+	public UserSession getByName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @param ip IP of the Users, with or without leading "/"
+	 * @return All sessions connected from the IP
+	 */
+	public Collection<UserSession> getByIP(String ip) {
+		Set<UserSession> sessions = byIP.get(normalizeIP(ip));
+		return sessions == null ? Collections.emptySet() : Collections.unmodifiableSet(sessions);
+	}
+
+	public boolean contains(UUID uuid) {
+		return byUuid.containsKey(uuid);
+	}
+
+	public boolean isNameTaken(String name) {
+		return byName.containsKey(name);
+	}
+
+	public int size() {
+		return byUuid.size();
+	}
+
+	public void forEach(Consumer<UserSession> action) {
+		byUuid.values().forEach(action);
+	}
+
+	public void clear() {
+		byUuid.clear();
+		byName.clear();
+		byIP.clear();
+	}
+
+	// InetAddress.toString() prefixes the address with "<hostname>/"
+	private static String normalizeIP(String ip) {
+		return ip.substring(ip.indexOf('/') + 1);
+	}
+}
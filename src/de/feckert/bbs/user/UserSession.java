@@ -0,0 +1,1206 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Main;
+import de.feckert.bbs.Metrics;
+import de.feckert.bbs.Server;
+import de.feckert.bbs.StaticText;
+import de.feckert.bbs.Util;
+import de.feckert.bbs.net.FrameCodec;
+import de.feckert.bbs.net.FrameDecoder;
+import de.feckert.bbs.security.FrameCipher;
+import de.feckert.bbs.security.RateLimiter;
+import de.feckert.bbs.security.UserVerifier;
+import de.feckert.bbs.security.Verifier;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A UserSession holds the state of the Server-Client interaction with
+ * a singular client and runs the JERAN COM-PROTOCOL as a state machine.
+ * <p>
+ * Every time the session requests input (0x00) it stores an {@link InputHandler}
+ * which consumes the next line sent by the client. This makes the session
+ * independent of how the lines are read from the network, the actual IO is
+ * done by a subclass (see {@link UserThread} for the blocking implementation).
+ * <p>
+ * Received bytes are split into messages by the {@link FrameDecoder} and all
+ * output is encoded by the {@link FrameCodec} negotiated with the client.
+ * <p>
+ * Input which arrives while no handler waits for it (input is suspended or the
+ * client does not take its output, see {@link FlushPolicy#getOutputLimit()})
+ * is kept, up to {@link UserSession#MAX_BACKLOG} bytes, and handed to the
+ * handlers on the thread of the session once they wait for it again.
+ *
+ * @author Felix Eckert
+ */
+public abstract class UserSession {
+	private static final int MAX_BACKLOG = 1 << 16;
+
+	// Identifying Variables
+	protected UUID uuid;
+	protected String name;
+	protected volatile UserVerifier verifier = null;
+	private volatile String resumeToken = null;
+
+	// Protocol State
+	protected int delay;
+	protected boolean disconnected = false;
+	private volatile InputHandler pendingInput = null;
+	private boolean suspended = false;
+	private final ReentrantLock inputLock = new ReentrantLock(); // Input may be resumed from other threads
+	private final ArrayDeque<KeptInput> backlog = new ArrayDeque<>(); // Guarded by the input lock
+	private int backlogBytes = 0;
+	private InputHandler idleHandler  = this::welcomePrompt;
+	protected final FrameDecoder decoder = new FrameDecoder();
+	protected volatile FrameCodec codec = FrameCodec.LEGACY;
+	private boolean pipelining = false;
+	private boolean batching = false;
+	private boolean hybrid = false;
+	private final CommandLine commandLine = new CommandLine();
+
+	// Lifecycle
+	private volatile long lastActivity = System.currentTimeMillis();
+	private final AtomicBoolean terminated = new AtomicBoolean(false);
+	SessionLifecycle.Entry lifecycleEntry;
+
+	// Output Statistics, attributed to the command which caused the output
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong writeCalls = new AtomicLong();
+	private String currentCommand = "login";
+	private long commandBytes = 0;
+	private long commandWrites = 0;
+
+	protected Server SERVER;
+
+	// End To End Variables
+	private boolean CONNECTION_ECRYPTED = false;
+	private KeyPair endToEndKP;
+	private PrivateKey privateKey;
+	private PublicKey publicKey;
+	private Cipher endToEndEncryptCipher;
+	private Cipher endToEndDecryptCipher;
+	private volatile FrameCipher frameCipher;
+	private final FrameDecoder sealedDecoder = new FrameDecoder();
+	private final ReentrantLock outputLock = new ReentrantLock(); // Keeps sealed frames in the order of their nonces
+
+	/**
+	 * @param uuid The UUID of the User to which this session "belongs"
+	 */
+	protected UserSession(UUID uuid) {
+		this.uuid = uuid;
+		this.SERVER = Main.SERVER;
+		SERVER.LIFECYCLE.opened(this);
+	}
+
+	/**
+	 * Consumes a line of input requested from the client.
+	 */
+	@FunctionalInterface
+	public interface InputHandler {
+		void handle(String input) throws IOException;
+	}
+
+	/**
+	 * Starts the protocol by negotiating the write delay with the client.
+	 */
+	protected void begin() {
+		sendFrame(FrameCodec.NEGOTIATE);
+		flush();
+		pendingInput = this::negotiateDelay;
+	}
+
+	/**
+	 * Feeds a message decoded by the {@link FrameDecoder} into the state
+	 * machine. If no handler requested further input afterwards, the session
+	 * falls back to its idle prompt (welcome prompt or command prompt).
+	 *
+	 * @param type   The message type
+	 * @param data   Array holding the payload, only valid during this call
+	 * @param offset Start of the payload
+	 * @param length Length of the payload
+	 * @throws IOException
+	 */
+	protected void handleFrame(int type, byte[] data, int offset, int length) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		switch (type) {
+			case FrameCodec.INPUT:
+				if (frameCipher != null) return; // Plain input is refused once the session key is established
+				handleInput(data, offset, length, false);
+				break;
+			case FrameCodec.SESSION_KEY:
+				acceptSessionKey(data, offset, length);
+				break;
+			case FrameCodec.ENCRYPTED:
+				FrameCipher cipher = frameCipher;
+				if (cipher == null) return;
+				byte[] plain;
+				try {
+					plain = cipher.decrypt(data, offset, length);
+				} catch (GeneralSecurityException e) {
+					SERVER.LOGGER.warnf("Failed to authenticate encrypted frame of user %s (IP: %s), dropping connection!\n", uuid, getIP());
+					disconnected = true;
+					abortConnection();
+					return;
+				}
+				sealedDecoder.feed(plain, 0, plain.length, this::handleSealedFrame);
+				break;
+			default: // Nothing accepts binary data (yet)
+				break;
+		}
+	}
+
+	private void handleSealedFrame(int type, byte[] data, int offset, int length) throws IOException {
+		if (type == FrameCodec.INPUT) handleInput(data, offset, length, true);
+	}
+
+	/**
+	 * Hands an input line to the pending {@link InputHandler}, or keeps it
+	 * if no handler waits for it.
+	 *
+	 * @param sealed If the line was already decrypted with the session key
+	 */
+	private void handleInput(byte[] data, int offset, int length, boolean sealed) throws IOException {
+		inputLock.lock();
+		try {
+			if (disconnected) return;
+			if (pendingInput == null || suspended || !backlog.isEmpty() || isOutputFull()) {
+				keepInput(data, offset, length, sealed);
+				return;
+			}
+			processInput(data, offset, length, sealed);
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	/**
+	 * Hands kept input to the waiting handlers until input is suspended
+	 * again or the client does not take its output. Called on the thread of
+	 * the session, see {@link UserSession#runInSession(Runnable)}.
+	 */
+	protected void replayInput() {
+		inputLock.lock();
+		try {
+			KeptInput input;
+			while (pendingInput != null && !suspended && !disconnected && !isOutputFull() && (input = backlog.poll()) != null) {
+				backlogBytes -= input.data.length;
+				processInput(input.data, 0, input.data.length, input.sealed);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			disconnected = true;
+			abortConnection();
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	/**
+	 * @return If input was kept which no handler took yet
+	 */
+	protected boolean hasKeptInput() {
+		inputLock.lock();
+		try {
+			return !backlog.isEmpty();
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	/**
+	 * @return If kept input could be handed to a waiting handler now
+	 */
+	protected boolean canReplayInput() {
+		inputLock.lock();
+		try {
+			return !backlog.isEmpty() && pendingInput != null && !suspended && !disconnected && !isOutputFull();
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	// Input lock has to be held
+	private void keepInput(byte[] data, int offset, int length, boolean sealed) {
+		if (backlogBytes + length > MAX_BACKLOG) {
+			SERVER.LOGGER.warnf("Dropping user %s (IP: %s) which sent more than %s byte(s) of input ahead!\n", uuid, getIP(), MAX_BACKLOG);
+			disconnected = true;
+			abortConnection();
+			return;
+		}
+		backlog.add(new KeptInput(Arrays.copyOfRange(data, offset, offset + length), sealed));
+		backlogBytes += length;
+	}
+
+	// Input lock has to be held
+	private void processInput(byte[] data, int offset, int length, boolean sealed) throws IOException {
+		InputHandler handler = pendingInput;
+		pendingInput = null;
+
+		String message;
+		if (CONNECTION_ECRYPTED && !sealed) {
+			// Decrypt the message, V2 clients send the raw cipher text
+			try {
+				byte[] plain;
+				if (codec.isBinary()) {
+					plain = endToEndDecryptCipher.doFinal(data, offset, length);
+				} else {
+					while (length > 0 && data[offset + length - 1] == '\r') length--;
+					ByteBuffer cipherText = Base64.getDecoder().decode(ByteBuffer.wrap(data, offset, length));
+					plain = endToEndDecryptCipher.doFinal(cipherText.array(),
+							cipherText.arrayOffset() + cipherText.position(), cipherText.remaining());
+				}
+				message = new String(plain, StandardCharsets.UTF_8);
+			} catch (IllegalBlockSizeException | BadPaddingException | IllegalArgumentException e) {
+				e.printStackTrace();
+				printMessage("Failed to Decrypt Your Message! Regenerating keys");
+				requestInput(handler);
+				return;
+			}
+		} else {
+			message = new String(data, offset, length, StandardCharsets.UTF_8);
+		}
+
+		handler.handle(message.replace("\n", "").replace("\r", ""));
+		if (pendingInput == null && !disconnected && !suspended) requestInput(idleHandler);
+	}
+
+	/**
+	 * Stops the session from requesting further input until
+	 * {@link UserSession#resumeInput()} is called, e.g. while
+	 * waiting for work done on another thread.
+	 */
+	protected void suspendInput() {
+		inputLock.lock();
+		try {
+			suspended = true;
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	/**
+	 * Requests input again after {@link UserSession#suspendInput()},
+	 * can be called from any thread. Input kept meanwhile is handled
+	 * on the thread of the session.
+	 */
+	public void resumeInput() {
+		inputLock.lock();
+		try {
+			suspended = false;
+			if (pendingInput == null && !disconnected && idleHandler != null) requestInput(idleHandler);
+			if (!backlog.isEmpty()) runInSession(this::replayInput);
+		} finally {
+			inputLock.unlock();
+		}
+	}
+
+	/**
+	 * @return If the client does not take its output fast enough and no
+	 *         further input should be handled until it did
+	 */
+	protected boolean isOutputFull() {
+		return unsent() > SERVER.FLUSH_POLICY.getOutputLimit();
+	}
+
+	/**
+	 * Drops a client which does not take its output at all, called by the
+	 * transport after output was queued.
+	 *
+	 * @param unsent Bytes queued but not sent yet
+	 */
+	protected void checkDropLimit(int unsent) {
+		if (unsent <= SERVER.FLUSH_POLICY.getDropLimit() || disconnected) return;
+		SERVER.LOGGER.warnf("Dropping user %s (IP: %s) with %s byte(s) of unsent output!\n", uuid, getIP(), unsent);
+		disconnected = true;
+		abortConnection();
+	}
+
+	/**
+	 * Requests input from the user, the next line will be passed
+	 * to the given handler. While a batch of pipelined input is handled
+	 * the request is sent with the output of the whole batch.
+	 *
+	 * @param handler Handler for the requested input
+	 */
+	public void requestInput(InputHandler handler) {
+		if (isClosed() || disconnected) return;
+		pendingInput = handler; // Set before the request, the answer may arrive on another thread
+		sendFrame(FrameCodec.INPUT_REQUEST);
+		if (!batching) flush();
+	}
+
+	/**
+	 * Called by the transport before received input is decoded. If the
+	 * client enabled pipelining, all output up to {@link UserSession#endBatch()}
+	 * is sent with a single flush.
+	 */
+	protected void beginBatch() {
+		batching = pipelining;
+	}
+
+	/**
+	 * Called by the transport once no further input is buffered,
+	 * sends the output of the batch.
+	 */
+	protected void endBatch() {
+		if (!batching) return;
+		batching = false;
+		flush();
+	}
+
+	///////////////////////////////////
+	// Login
+
+	private void negotiateDelay(String response) throws IOException {
+		// Newer clients append their capabilities to the delay, e.g. "25 v2 pipeline"
+		String[] tokens = response.trim().split(" ");
+		try {
+			delay = Integer.parseInt(tokens[0]);
+		} catch (NumberFormatException e) {
+			SERVER.LOGGER.infof("Login failed for USER:UUID %s!\n", uuid.toString());
+			disconnect();
+			return;
+		}
+
+		StringBuilder accepted = new StringBuilder();
+		boolean aesRequested = false;
+		for (int i = 1; i < tokens.length; i++) {
+			if (tokens[i].equals("v2") && !codec.isBinary()) {
+				codec = FrameCodec.V2;
+				decoder.setBinary(true);
+				accepted.append("v2 ");
+			} else if (tokens[i].equals("pipeline") && !pipelining) {
+				pipelining = true;
+				batching = true; // Input sent along with the handshake is part of this batch
+				accepted.append("pipeline ");
+			} else if (tokens[i].equals("aes")) {
+				aesRequested = true;
+			}
+		}
+		if (aesRequested && codec.isBinary() && !hybrid) {
+			hybrid = true;
+			sealedDecoder.setBinary(true);
+			accepted.append("aes ");
+		}
+		if (accepted.length() > 0) sendFrame(FrameCodec.HELLO, accepted.toString().trim());
+
+		// Print greeting text, the MOTD is inserted at load time
+		writeStatic("GREET");
+	}
+
+	private void welcomePrompt(String response) throws IOException {
+		switch (response) {
+			case "exit":
+				disconnect();
+				break;
+			case "enter":
+				writeText(delay, "Please enter a Username (Max. 7 Characters)", false, "\n");
+				requestInput(this::chooseName);
+				break;
+			case "info":
+				writeStatic("INFO");
+				break;
+		}
+	}
+
+	private void chooseName(String response) {
+		response = firstWord(response, 7);
+		if (response.isEmpty()) {
+			printMessage("Invalid Username!");
+			writeText(delay, "Please enter a Username (Max. 7 Characters)", false, "\n");
+			requestInput(this::chooseName);
+			return;
+		}
+
+		if (response.matches("ADMIN") || !SERVER.SESSIONS.reserveName(response, this)) {
+			printMessage("Username Taken!");
+			writeText(delay, "Please enter a Username (Max. 7 Characters)", false, "\n");
+			requestInput(this::chooseName);
+			return;
+		}
+		this.name = response;
+		SERVER.LOGGER.infof("Registered user %s with name %s!\n", uuid, name);
+
+		writeStatic("WELCOME");
+		printlnMessage(String.format("\nWelcome %s! Your UUID is %s", name, uuid));
+
+		idleHandler = this::command; // Before the key pair is set up, that may resume input on another thread
+		startEndToEnd();
+	}
+
+	// First word of an input line cut to the given length, empty if the line is blank
+	private static String firstWord(String input, int maxLength) {
+		String word = input.trim().split(" ")[0];
+		return word.length() > maxLength ? word.substring(0, maxLength) : word;
+	}
+
+	///////////////////////////////////
+	// Commands
+
+	/**
+	 * Registers the built-in commands.
+	 *
+	 * @param registry Registry of the server
+	 */
+	public static void registerCommands(CommandRegistry registry) {
+		registry.register("exit",    (session, line) -> session.disconnect());
+		registry.register("posts",   UserSession::listPosts);
+		registry.register("post",    (session, line) -> Posts.Post.constructPost(session, session.uuid, session.verifier));
+		registry.register("reply",   UserSession::reply);
+		registry.register("recent",  (session, line) -> session.writePostList(
+				Posts.POST_HISTORY.size() - 10, Posts.POST_HISTORY.size()));
+		registry.register("read",    UserSession::readPost);
+		registry.register("search",  UserSession::search);
+		registry.register("verify",  UserSession::verify);
+		registry.register("help",    (session, line) -> session.writeStatic("HELP"));
+		registry.register("msg",     UserSession::sendMessage);
+	}
+
+	private void command(String response) throws IOException {
+		CommandLine line = commandLine.parse(response);
+		if (line.isEmpty()) return;
+
+		CommandRegistry.Entry entry = SERVER.COMMANDS.lookup(line);
+		beginCommand(entry == null ? "unknown" : entry.getName());
+		if (entry == null) return;
+
+		RateLimiter.Limit limit = limitOf(entry.getName(), line);
+		if (limit != null) {
+			long wait = SERVER.RATE_LIMITER.acquire(limit, getIP(), uuid);
+			if (wait != 0) {
+				printMessage(String.format("Slow down! Try again in %s second(s).", (wait + 999) / 1000));
+				return;
+			}
+		}
+		entry.getCommand().execute(this, line);
+	}
+
+	// The rate limit of a command, NULL if it is not limited
+	private static RateLimiter.Limit limitOf(String name, CommandLine line) {
+		switch (name) {
+			case "verify":
+				return line.argEquals(0, "create") ? RateLimiter.Limit.CREATE : RateLimiter.Limit.LOGIN;
+			case "post":
+			case "reply":
+				return RateLimiter.Limit.POST;
+			case "msg":
+				return RateLimiter.Limit.MSG;
+			default:
+				return null;
+		}
+	}
+
+	// Gives a list of posts
+	private void listPosts(CommandLine line) {
+		if (line.argCount() < 2) {
+			writePostList(0, Posts.POST_HISTORY.size() - 1);
+			return;
+		}
+
+		try {
+			writePostList(line.argInt(0), line.argInt(1));
+		} catch (NumberFormatException e) {
+			printMessage("Invalid NumberFormat!");
+		}
+	}
+
+	// Creates a Reply to another post
+	private void reply(CommandLine line) {
+		printMessage("What Post do you want to respond to (Post Number)?");
+		requestInput((input) -> {
+			try {
+				// Parse Number
+				int postNumber = Integer.parseInt(input);
+				if (postNumber < 0 || postNumber >= Posts.POST_HISTORY.size()) {
+					printMessage("Invalid PostNumber!");
+					return;
+				}
+				// Construct post
+				Posts.ResponsePost.constructPost(this, uuid, verifier, Posts.POST_HISTORY.get(postNumber));
+			} catch (NumberFormatException e) {
+				printMessage("Invalid NumberFormat!");
+			}
+		});
+	}
+
+	// Reads a specified post
+	private void readPost(CommandLine line) {
+		if (line.argCount() < 1) {
+			printMessage("Command read requires argument \"POST-NUMBER\" (int)!");
+			return;
+		}
+
+		try {
+			int postNumber = line.argInt(0);
+			if (postNumber < 0 || postNumber >= Posts.POST_HISTORY.size()) {
+				printMessage("Invalid PostNumber!");
+				return;
+			}
+
+			writePost(Posts.POST_HISTORY.get(postNumber));
+		} catch (NumberFormatException e) {
+			printMessage("Invalid NumberFormat!");
+		}
+	}
+
+	// Lists the newest posts containing all search terms
+	private void search(CommandLine line) {
+		if (line.argCount() < 1) {
+			printMessage("Command search requires argument \"TERMS\"!");
+			return;
+		}
+
+		int[] ids = Posts.SEARCH_INDEX.search(line.rest(0), Posts.SEARCH_RESULTS);
+		if (ids.length == 0) {
+			printMessage("No posts found!");
+			return;
+		}
+		if (isClosed() || disconnected) return;
+		send(PostListing.encode(codec, ids));
+		endFrame();
+	}
+
+	private void verify(CommandLine line) {
+		if (line.argCount() == 0) {
+			printMessage("Expected atleast 1 Argument: create/login");
+		} else if (line.argEquals(0, "login")) {
+
+			printMessage("Username (7 Chars): ");
+			requestInput((input) -> {
+				String uname = firstWord(input, 7);
+				if (uname.isEmpty()) {
+					printMessage("Invalid Username!");
+					return;
+				}
+				printMessage("Password: ");
+				requestInput((pwInput) -> {
+					String pw = firstWord(pwInput, Integer.MAX_VALUE);
+					if (pw.isEmpty()) {
+						printMessage("Invalid Password!");
+						return;
+					}
+
+					// Hashing runs on the HashExecutor, no input is requested until it is done
+					suspendInput();
+					boolean accepted = Verifier.verifyAsync(getIP(), uname, pw, (result) -> {
+						this.verifier = result;
+						if (result != null) {
+							SERVER.LOGGER.infof("User [%s] verified as %s [pk=%s]\n", SERVER.getUserName(uuid), result.getName(), result.getUuid());
+							printMessage("Welcome " + uname + "!");
+							issueResumeToken();
+						} else {
+							printMessage("Invalid Username/Password!");
+						}
+						resumeInput();
+					});
+					if (!accepted) {
+						printMessage("Server busy, please retry!");
+						resumeInput();
+					}
+				});
+			});
+
+		} else if (line.argEquals(0, "create")) {
+
+			// Get Credentials
+			printMessage("Username (7 Chars): ");
+			requestInput((input) -> {
+				String uname = firstWord(input, 7);
+				if (uname.isEmpty()) {
+					printMessage("Invalid Username!");
+					return;
+				}
+				printMessage("Password: ");
+				requestInput((pwInput) -> {
+					String pw = firstWord(pwInput, Integer.MAX_VALUE);
+					if (pw.isEmpty()) {
+						printMessage("Invalid Password!");
+						return;
+					}
+
+					// Create Verifier
+					suspendInput();
+					boolean accepted = Verifier.createVerifierAsync(getIP(), uname, pw, (result) -> {
+						if (result == null) printMessage("Username Taken!");
+						resumeInput();
+					});
+					if (!accepted) {
+						printMessage("Server busy, please retry!");
+						resumeInput();
+					}
+				});
+			});
+
+		} else if (line.argEquals(0, "resume")) {
+			if (line.argCount() < 2) {
+				printMessage("Expected a Token: verify resume <token>");
+				return;
+			}
+
+			// Only a HMAC is checked, no need for the HashExecutor
+			UserVerifier result = SERVER.RESUME_TOKENS.resume(line.arg(1));
+			if (result != null) {
+				this.verifier = result;
+				SERVER.LOGGER.infof("User [%s] resumed as %s [pk=%s]\n", SERVER.getUserName(uuid), result.getName(), result.getUuid());
+				printMessage("Welcome back " + result.getName() + "!");
+				issueResumeToken();
+			} else {
+				printMessage("Invalid or expired Token!");
+			}
+
+		} else if (line.argEquals(0, "logout")) {
+			SERVER.RESUME_TOKENS.revoke(resumeToken);
+			this.resumeToken = null;
+			this.verifier = null;
+			printMessage("Logged out!");
+
+		} else {
+			printMessage(String.format("Invalid 1st Argument \"%s\"! Expected login, create, resume or logout!", line.arg(0)));
+		}
+	}
+
+	private void issueResumeToken() {
+		resumeToken = SERVER.RESUME_TOKENS.issue(verifier, hybrid && frameCipher != null); // Never sent in the clear
+		if (resumeToken != null) printMessage("Resume Token: " + resumeToken);
+	}
+
+	private void sendMessage(CommandLine line) {
+		if (line.argCount() < 2) {
+			printMessage("Expect atleast two Arguments: UUID; Message!");
+			return;
+		}
+
+		try {
+			UserSession receiver = SERVER.SESSIONS.get(UUID.fromString(line.arg(0)));
+			if (receiver == null) {
+				printMessage("Unknown User!");
+				return;
+			}
+			receiver.userMessage(uuid, line.rest(1));
+		} catch (IllegalArgumentException e) {
+			printMessage("Invalid UUID Format!");
+		}
+	}
+
+	/**
+	 * Shows a message of another user. Runs on the thread of the sender, so
+	 * the output is only queued here and sent by the writer thread or
+	 * IO-Thread of this session, a slow receiver never blocks the sender.
+	 *
+	 * @param sender  UUID of the sending user
+	 * @param message The message
+	 */
+	public void userMessage(UUID sender, String message) {
+		if (sender == this.uuid) return;
+		printMessage("Message from User "+ SERVER.getUserName(sender)+": ");
+		printMessage(message);
+		flush();
+	}
+
+	///////////////////////////////////
+	// End To End
+
+	/**
+	 * Sets up receival of encrypted messages with the client
+	 * using RSA. If the {@link de.feckert.bbs.security.KeyPool} is empty,
+	 * input is suspended until the pool generated a key pair.
+	 *
+	 * @see de.feckert.bbs.security.KeyPool
+	 * @see UserSession#stopEndToEnd()
+	 * */
+	private void startEndToEnd() {
+		if (endToEndKP != null) stopEndToEnd();
+
+		// Usually pre-generated, key generation never runs on the session or IO-Thread
+		KeyPair pair = SERVER.KEY_POOL.poll();
+		if (pair != null) {
+			useKeyPair(pair);
+			return;
+		}
+		suspendInput();
+		SERVER.KEY_POOL.generate((generated) -> {
+			if (!disconnected) useKeyPair(generated);
+			resumeInput();
+		});
+	}
+
+	// Starts the end to end encryption with the given key pair, NULL if none could be generated
+	private void useKeyPair(KeyPair pair) {
+		this.endToEndKP = pair;
+		if (endToEndKP == null) {
+			printMessage("Server Failed to generate End To End Key Pair!");
+			return;
+		}
+		this.privateKey = endToEndKP.getPrivate();
+		this.publicKey  = endToEndKP.getPublic();
+		try {
+			endToEndEncryptCipher = Cipher.getInstance("RSA");
+			endToEndDecryptCipher = Cipher.getInstance("RSA");
+			endToEndEncryptCipher.init(Cipher.ENCRYPT_MODE, publicKey);
+			endToEndDecryptCipher.init(Cipher.DECRYPT_MODE, privateKey);
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+			e.printStackTrace();
+			printMessage("Server Failed to generate End To End Ciphers!");
+			return;
+		}
+
+		CONNECTION_ECRYPTED = true;
+
+		// Tell the client that it should send encrypted messages and give it the public key
+		sendFrame(FrameCodec.ENCRYPTION_START, publicKey.getEncoded());
+		endFrame();
+	}
+
+	/**
+	 * Unwraps the AES session key sent by a client using the hybrid
+	 * encryption, all following frames are sealed with it.
+	 *
+	 * @see FrameCipher
+	 */
+	private void acceptSessionKey(byte[] data, int offset, int length) {
+		if (!hybrid || endToEndDecryptCipher == null || frameCipher != null) return;
+
+		try {
+			FrameCipher cipher = new FrameCipher(FrameCipher.decodeKey(
+					endToEndDecryptCipher.doFinal(data, offset, length)), true);
+			outputLock.lock();
+			try {
+				frameCipher = cipher;
+			} finally {
+				outputLock.unlock();
+			}
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			e.printStackTrace();
+			printMessage("Failed to establish the session key!");
+		}
+	}
+
+	/**
+	 * Stops the client from sending only encrypted messages.
+	 * @see UserSession#startEndToEnd()
+	 * */
+	private void stopEndToEnd() {
+		sendFrame(FrameCodec.ENCRYPTION_STOP);
+		endFrame();
+		outputLock.lock();
+		try {
+			frameCipher = null;
+		} finally {
+			outputLock.unlock();
+		}
+		endToEndDecryptCipher = null;
+		endToEndEncryptCipher = null;
+		privateKey = null;
+		publicKey  = null;
+		endToEndKP = null;
+		CONNECTION_ECRYPTED = false;
+	}
+
+	///////////////////////////////////
+	// Output
+
+	/**
+	 * "Safely" disconnect the user.
+	 *
+	 * @throws IOException
+	 */
+	public void disconnect() throws IOException {
+		SERVER.LOGGER.infof("Disconnecting User [IP: %s; UUID: %s]\n", getIP(), uuid);
+		sendFrame(FrameCodec.CLOSE); // SEND CONNECTION_CLOSE CODE
+		flush();
+		closeConnection();
+		disconnected = true;
+	}
+
+	/**
+	 * Drops the connection of an idle user without sending anything,
+	 * as the other end is most likely gone.
+	 */
+	void reap() {
+		SERVER.LOGGER.infof("Reaping idle User [IP: %s; UUID: %s]\n", getIP(), uuid);
+		disconnected = true;
+		abortConnection();
+	}
+
+	/**
+	 * Releases everything held by the session and removes it from the
+	 * server. Has to be called by the subclass on every exit path, only the
+	 * first call has an effect.
+	 */
+	protected void terminate() {
+		if (!terminated.compareAndSet(false, true)) return;
+		disconnected = true;
+		SERVER.SESSIONS.remove(this);
+		if (name != null) Posts.posterChanged(uuid); // Posts of the session now show "unknown"
+		SERVER.LIFECYCLE.closed(this);
+		beginCommand(null);
+
+		// Drop key material and pending dialogs
+		endToEndDecryptCipher = null;
+		endToEndEncryptCipher = null;
+		privateKey = null;
+		publicKey  = null;
+		endToEndKP = null;
+		frameCipher = null;
+		pendingInput = null;
+		idleHandler  = null;
+	}
+
+	/**
+	 * @return If the session terminated
+	 */
+	boolean isTerminated() {
+		return terminated.get();
+	}
+
+	/**
+	 * Attributes the output written since the last command to it and
+	 * starts counting for the next one.
+	 *
+	 * @param command The next command, NULL if the session ended
+	 */
+	private void beginCommand(String command) {
+		long bytes  = bytesWritten.get();
+		long writes = writeCalls.get();
+		Metrics.increment("output." + currentCommand + ".count");
+		Metrics.add("output." + currentCommand + ".bytes", bytes - commandBytes);
+		Metrics.add("output." + currentCommand + ".writes", writes - commandWrites);
+		if (Main.DEBUG) {
+			SERVER.LOGGER.infof("Output of %s for %s: %s byte(s) in %s write(s)\n",
+					currentCommand, uuid, bytes - commandBytes, writes - commandWrites);
+		}
+
+		currentCommand = command;
+		commandBytes   = bytes;
+		commandWrites  = writes;
+	}
+
+	/**
+	 * Records a write to the socket, called by the transport for
+	 * every write syscall.
+	 *
+	 * @param bytes Amount of bytes written
+	 */
+	protected void countWrite(long bytes) {
+		bytesWritten.addAndGet(bytes);
+		writeCalls.incrementAndGet();
+	}
+
+	/**
+	 * Marks the end of a frame. Depending on the {@link FlushPolicy} the
+	 * output is sent now or coalesced with the following frames.
+	 */
+	protected void endFrame() {
+		FlushPolicy policy = SERVER.FLUSH_POLICY;
+		if (batching) { // Sent at the end of the batch
+			if (buffered() >= policy.getBufferSize()) flush();
+		} else if (policy.isImmediate() || buffered() >= policy.getBufferSize()) {
+			flush();
+		} else {
+			flushWithin(policy.getMaxLatency());
+		}
+	}
+
+	/**
+	 * Writes a Message to the client with no additional LF/RC.
+	 *
+	 * @param message Message to be written
+	 */
+	public void printMessage(String message) {
+		writeText(0, message, false, "");
+	}
+
+	/**
+	 * Writes a Message to the client with a Line-Feed at the end
+	 *
+	 * @param message Message to be written
+	 */
+	public void printlnMessage(String message) {
+		writeText(0, message, true, "\n");
+	}
+
+	/**
+	 * Writes a single output line (0x01) to the client.
+	 *
+	 * @param line Line to be written
+	 */
+	public void printLine(String line) {
+		if (isClosed() || disconnected) return;
+		sendFrame(FrameCodec.OUTPUT, line + "\n");
+		endFrame();
+	}
+
+	/**
+	 * Writes a text Char-by-Char to the user
+	 *
+	 * @param delay     How many milliseconds should be inbetween each char
+	 * @param text      The text to be written
+	 * @param lf        Add a Line-Feed after each segment
+	 * @param splitChar Char to segment the text by
+	 */
+	protected void writeText(int delay, String text, boolean lf, String splitChar) {
+		if (isClosed() || disconnected) return;
+		for (String s : text.split(splitChar)) {
+			sendFrame(FrameCodec.OUTPUT, s + (lf ? "\n" : ""));
+			endFrame();
+			pace(delay);
+		}
+		sendFrame(FrameCodec.OUTPUT, "\n");
+		endFrame();
+	}
+
+	/**
+	 * Writes a pre-rendered static text to the user, segment by segment
+	 * with the negotiated delay or all at once if there is no delay.
+	 *
+	 * @param name Name of the text
+	 * @see Util#RENDERED_TEXTS
+	 */
+	protected void writeStatic(String name) {
+		if (isClosed() || disconnected) return;
+		StaticText text = Util.RENDERED_TEXTS.get(name);
+		if (delay <= 0) {
+			send(text.getWhole(codec));
+			endFrame();
+			return;
+		}
+
+		for (StaticText.Frame segment : text.getSegments(codec)) {
+			send(segment);
+			endFrame();
+			pace(delay);
+		}
+		send(text.getTerminator(codec));
+		endFrame();
+	}
+
+	/**
+	 * Writes a list of posts at once, like {@link UserSession#printlnMessage(String)}
+	 * does with {@link Posts#generatePostList(int, int)} but from the pre-rendered rows.
+	 *
+	 * @param startingPoint Start Index for post list
+	 * @param depth         Index of the last post
+	 */
+	protected void writePostList(int startingPoint, int depth) {
+		if (isClosed() || disconnected) return;
+		send(PostListing.encode(codec, startingPoint, depth));
+		endFrame();
+	}
+
+	/**
+	 * Writes a post at once, like {@link UserSession#printlnMessage(String)} does
+	 * with its text but from the {@link Posts#READ_CACHE}.
+	 *
+	 * @param post The post to be written
+	 */
+	protected void writePost(Posts.Post post) {
+		if (isClosed() || disconnected) return;
+		send(codec.encodeAll(FrameCodec.OUTPUT, Posts.READ_CACHE.get(post)));
+		endFrame();
+	}
+
+	/**
+	 * Writes a message without payload to the client.
+	 *
+	 * @param type The message type
+	 */
+	protected void sendFrame(int type) {
+		send(codec.encode(type));
+	}
+
+	/**
+	 * Writes a message with a text payload to the client.
+	 *
+	 * @param type The message type
+	 * @param text The payload
+	 */
+	protected void sendFrame(int type, String text) {
+		send(codec.encode(type, text));
+	}
+
+	/**
+	 * Writes a message with a binary payload to the client.
+	 *
+	 * @param type    The message type
+	 * @param payload The payload
+	 */
+	protected void sendFrame(int type, byte[] payload) {
+		send(codec.encode(type, payload));
+	}
+
+	/**
+	 * Writes encoded frame(s), sealed with the session key if established.
+	 *
+	 * @param encoded The frame(s)
+	 */
+	private void send(byte[] encoded) {
+		if (!hybrid) {
+			write(encoded);
+			return;
+		}
+
+		outputLock.lock();
+		try {
+			FrameCipher cipher = frameCipher;
+			if (cipher == null) {
+				write(encoded);
+			} else {
+				write(codec.encode(FrameCodec.ENCRYPTED, cipher.encrypt(encoded, 0, encoded.length)));
+			}
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			disconnected = true;
+			abortConnection();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a pre-rendered frame, sealed with the session key if established.
+	 *
+	 * @param frame The frame
+	 */
+	private void send(StaticText.Frame frame) {
+		if (hybrid && frameCipher != null) {
+			send(frame.bytes());
+		} else {
+			write(frame);
+		}
+	}
+
+	///////////////////////////////////
+	// Transport
+
+	/**
+	 * Starts serving the connection. Called once the session is registered,
+	 * so it can not terminate before it is registered.
+	 */
+	public abstract void start();
+
+	/**
+	 * Writes an encoded message to the client.
+	 *
+	 * @param encoded The message, owned by the transport from now on
+	 */
+	protected abstract void write(byte[] encoded);
+
+	/**
+	 * Writes an already encoded frame to the client.
+	 *
+	 * @param frame The frame, shared and never modified
+	 */
+	protected abstract void write(StaticText.Frame frame);
+
+	/**
+	 * Flushes all written output to the client. Can be called from any
+	 * thread and never blocks on the socket, the write is done by the
+	 * thread of the transport (writer thread or IO-Thread).
+	 */
+	protected abstract void flush();
+
+	/**
+	 * Makes sure the written output is flushed within the given time
+	 * if nothing else flushes it before.
+	 *
+	 * @param millis Maximum milliseconds until the output is sent
+	 */
+	protected abstract void flushWithin(int millis);
+
+	/**
+	 * @return Amount of written but not yet flushed bytes
+	 */
+	protected abstract int buffered();
+
+	/**
+	 * @return Amount of written bytes which are not sent to the client yet
+	 */
+	protected abstract int unsent();
+
+	/**
+	 * Runs a task on the thread which handles the input of the session,
+	 * e.g. to hand it input kept while it was suspended.
+	 *
+	 * @param task The task
+	 */
+	protected abstract void runInSession(Runnable task);
+
+	/**
+	 * Waits the given amount of milliseconds before further
+	 * output is sent to the client.
+	 *
+	 * @param delay Milliseconds to wait
+	 */
+	protected abstract void pace(int delay);
+
+	/**
+	 * Closes the underlying connection once all output was sent.
+	 *
+	 * @throws IOException
+	 */
+	protected abstract void closeConnection() throws IOException;
+
+	/**
+	 * Closes the underlying connection immediately, dropping queued output.
+	 * Can be called from any thread.
+	 */
+	protected abstract void abortConnection();
+
+	/**
+	 * @return If the underlying connection is closed
+	 */
+	protected abstract boolean isClosed();
+
+	/**
+	 * @return The users IP
+	 * */
+	public abstract String getIP();
+
+	/**
+	 * @return The name of the User
+	 * */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return The users UUID
+	 * */
+	public UUID getUuid() {
+		return this.uuid;
+	}
+
+	/**
+	 * @return Time of the last input received from the user in milliseconds
+	 * */
+	public long getLastActivity() {
+		return this.lastActivity;
+	}
+
+	/**
+	 * A line of input which arrived while no handler waited for it.
+	 */
+	private static class KeptInput {
+		final byte[] data;
+		final boolean sealed;
+
+		KeptInput(byte[] data, boolean sealed) {
+			this.data = data;
+			this.sealed = sealed;
+		}
+	}
+}
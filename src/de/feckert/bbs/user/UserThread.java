@@ -1,108 +1,72 @@
 package de.feckert.bbs.user;
 
-import java.util.Base64;
+import de.feckert.bbs.StaticText;
+import de.feckert.bbs.Threads;
 
-import de.feckert.bbs.Main;
-import de.feckert.bbs.Server;
-import de.feckert.bbs.Util;
-import de.feckert.bbs.security.UserVerifier;
-import de.feckert.bbs.security.Verifier;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.security.*;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A UserThread handles Server-Client interaction with a singular
- * client.
+ * client on its own thread using blocking socket IO. The thread
+ * is a virtual thread if enabled, see {@link Threads}. Write delays
+ * are timed by the {@link PacingScheduler} and the output is sent by its
+ * writers (see {@link PacedOutput}), the thread only blocks while
+ * waiting for input, while the client does not take its output (see
+ * {@link FlushPolicy#getOutputLimit()}) or while input it sent ahead
+ * waits to be handled.
  *
  * @author Felix Eckert
  */
-public class UserThread implements Runnable {
+public class UserThread extends UserSession implements Runnable {
 	// Identifying Variables
 	private Socket socket;
-	private UUID uuid;
-	private String name;
-	private UserVerifier verifier = null;
 
 	// Client Thread
 	private Thread thread;
 
 	// IO Variables
-	private BufferedReader reader;
-	private PrintWriter writer;
-	private int delay;
-
-	private boolean disconnected = false;
-
-	private Server SERVER;
-
-	// End To End Variables
-	private boolean CONNECTION_ECRYPTED = false;
-	private KeyPair endToEndKP;
-	private PrivateKey privateKey;
-	private PublicKey publicKey;
-	private Cipher endToEndEncryptCipher;
-	private Cipher endToEndDecryptCipher;
+	private InputStream input;
+	private PacedOutput output;
+	private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
 
 	/**
 	 * @param uuid The UUID of the User to which this thread "belongs"
 	 * @param sock The Socket of the User.
 	 */
 	public UserThread(UUID uuid, Socket sock) {
-		this.uuid = uuid;
+		super(uuid);
 		this.socket = sock;
-		this.thread = new Thread(this, "JERAN:USER_" + uuid.toString());
-		this.thread.start();
+		this.thread = Threads.create(this, "JERAN:USER_" + uuid.toString());
 	}
 
-	public void run() {
-		String response = "";
-		this.SERVER = Main.SERVER;
+	@Override
+	public void start() {
+		thread.start();
+	}
 
+	public void run() {
 		try {
 			// SETUP IO
-			writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
-			reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			// Do User Login/Pre-Login actions
-			if (!loginUser()) {
-				SERVER.LOGGER.infof("Login failed for USER:UUID %s!\n", uuid.toString());
-				thread.join();
-				return;
-			}
-			SERVER.LOGGER.infof("Registered user %s with name %s!\n", uuid, name);
-
-			String invoke;
-			String[] params;
-			String[] split;
-
-			// Command Loop
-			startEndToEnd();
-			while (!disconnected) {
-				writer.write((byte) 0x00);
-				writer.flush();
-
-				response = readResponse();
-				if (response.matches("")) continue;
-
-				// Parse Command
-				split = response.split(" ");
-				params = new String[split.length - 1];
-				invoke = split[0];
-				System.arraycopy(split, 1, params, 0, split.length - 1);
-
-				// Execute
-				executeAction(invoke, params);
+			output = new PacedOutput(new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()),
+					SERVER.FLUSH_POLICY.getBufferSize()), SERVER.PACING);
+			input = socket.getInputStream();
+
+			// Read Loop, the session decides what to do with each message
+			begin();
+			byte[] buffer = new byte[4096];
+			int read;
+			while (!disconnected && (read = input.read(buffer)) != -1) {
+				beginBatch();
+				decoder.feed(buffer, 0, read, this::handleFrame);
+				if (input.available() == 0 || isOutputFull() || hasKeptInput()) endBatch(); // else the batch continues with the next read
+				catchUp();
 			}
-
-		} catch (IOException | InterruptedException e) {
+		} catch (IOException e) {
 			if (e instanceof java.net.SocketException) {
 				if (e.getMessage().matches("Connection reset")) {
 					SERVER.LOGGER.infof("Lost connection for user %s (IP: %s)\n", getName() + "(" + getUuid() + ")", getIP());
@@ -110,355 +74,127 @@ public class UserThread implements Runnable {
 			} else {
 				e.printStackTrace();
 			}
+		} finally {
+			if (!disconnected) abortConnection(); // else closed once the output is sent
+			if (output != null) output.close();
+			terminate();
 		}
 	}
 
-	/***
-	 * Handles the process of logging in a new user.
-	 *
-	 * @return Was login successful
-	 * @throws IOException
-	 * @throws InterruptedException
+	/**
+	 * Stops reading until the client took its output and the input kept
+	 * meanwhile was handled.
 	 */
-	private boolean loginUser() throws IOException, InterruptedException {
-		// Negotiate Write Delay
-		writer.write((byte) 0x02);
-		writer.flush();
-		delay = Integer.parseInt(readResponse());
-
-		// Load greeting text and insert MOTD, print it.
-		String greetText = Util.STATIC_TEXTS.get("GREET").replaceAll("<MOTD>", Util.STATIC_TEXTS.get("MOTD"));
-		writeText(delay, greetText, false, "\n");
-
-		boolean welcomePrompt = true;
-		while (welcomePrompt) {
-			writer.write((byte) 0x00);
-			writer.flush();
-
-			String response = readResponse();
-			switch (response) {
-				case "exit":
-					disconnect();
-					break;
-				case "enter":
-					while (!disconnected) { // Loops until a valid username was received
-						writeText(delay, "Please enter a Username (Max. 7 Characters)", false, "\n");
-						writer.flush();
-						writer.write((byte) 0x00);
-						writer.flush();
-						response = readResponse().split(" ")[0];
-						response = response.substring(0, response.length() > 7 ? 7 : response.length());
-
-						if (!SERVER.NAMES.contains(response) || !response.matches("ADMIN")) {
-							this.name = response;
-							SERVER.NAMES.add(name);
-							break;
-						}
-						printMessage("Username Taken!");
-					}
-
-					writeText(delay, Util.STATIC_TEXTS.get("WELCOME"), false, "\n");
-					printlnMessage(String.format("\nWelcome %s! Your UUID is %s", name, uuid));
-
-					welcomePrompt = false;
-					break;
-				case "info":
-					writeText(delay, Util.STATIC_TEXTS.get("INFO"), false, "\n");
-					break;
-			}
-		}
-
-		return true;
-	}
-
-	private void executeAction(String invoke, String[] params) throws IOException, InterruptedException {
-		switch (invoke) {
-			case "exit":
-				disconnect();
-				break;
-			case "posts": // Gives a list of posts
-				if (params.length < 2) {
-					printlnMessage(Posts.generatePostList(0, Posts.POST_HISTORY.size() - 1));
-				} else {
-					try {
-						printlnMessage(Posts.generatePostList(Integer.parseInt(params[0]), Integer.parseInt(params[1])));
-					} catch (NumberFormatException e) {
-						printMessage("Invalid NumberFormat!");
-					}
-				}
-				break;
-			case "post": // Create a new Post
-				Posts.Post.constructPost(writer, reader, uuid, verifier);
-				break;
-			case "reply": // Creates a Reply to another post
-				printMessage("What Post do you want to respond to (Post Number)?");
-				try {
-					// Parse Number
-					int postNumber = Integer.parseInt(requestInput());
-					if (postNumber >= Posts.POST_HISTORY.size()) {
-						printMessage("Invalid PostNumber (to large!)");
-						break;
-					}
-					// Construct post
-					Posts.ResponsePost.constructPost(writer, reader, uuid, verifier, Posts.POST_HISTORY.get(postNumber));
-				} catch (NumberFormatException e) {
-					printMessage("Invalid NumberFormat!");
-				}
-				break;
-			case "recent": // Prints the 10 most recent posts
-				printlnMessage(Posts.generatePostList(Posts.POST_HISTORY.size() - 10, Posts.POST_HISTORY.size()));
-				break;
-			case "read": // Reads a specified post
-				if (params.length < 1) {
-					printMessage("Command read requires argument \"POST-NUMBER\" (int)!");
-					break;
-				}
-				try {
-					int postNumber = Integer.parseInt(params[0]);
-
-					printlnMessage(Posts.POST_HISTORY.get(postNumber).toString());
-				} catch (NumberFormatException e) {
-					printMessage("Invalid NumberFormat!");
-					break;
-				}
-				break;
-			case "verify":
-				if (params.length == 0) {
-					printMessage("Expected atleast 1 Argument: create/login");
-				} else if (params[0].matches("login")) {
-
-					printMessage("Username (7 Chars): ");
-					String nm = requestInput().split(" ")[0];
-					nm = nm.substring(0, nm.length() > 7 ? 7 : nm.length());
-					printMessage("Password: ");
-					String pw = requestInput().split(" ")[0];
-					this.verifier = Verifier.verify(nm, pw);
-
-					if (verifier != null) {
-						SERVER.LOGGER.infof("User [%s] verified as %s [pk=%s]\n", SERVER.getUserName(uuid), verifier.getName(), verifier.getUuid());
-						printMessage("Welcome " + nm + "!");
-					} else {
-						printMessage("Invalid Username/Password!");
-						break;
-					}
-
-				} else if (params[0].matches("create")) {
-
-					// Get Credentials
-					printMessage("Username (7 Chars): ");
-					String nm = requestInput().split(" ")[0];
-					nm = nm.substring(0, nm.length() > 7 ? 7 : nm.length());
-					printMessage("Password: ");
-					String pw = requestInput().split(" ")[0];
-
-					// Create Verifier
-					Verifier.createVerifier(nm, pw);
-
+	private void catchUp() {
+		try {
+			while (!disconnected && !socket.isClosed()) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+				replayInput();
+
+				if (isOutputFull()) {
+					output.awaitUnsentBelow(SERVER.FLUSH_POLICY.getOutputLimit());
+				} else if (hasKeptInput()) { // Input is suspended until a task resumes it
+					task = tasks.poll(1, TimeUnit.SECONDS);
+					if (task != null) task.run();
 				} else {
-					printMessage(String.format("Invalid 1st Argument \"%s\"! Expected login or create!", params[0]));
-				}
-				break;
-			case "help":
-				writeText(delay, Util.STATIC_TEXTS.get("HELP"), false, "\n");
-				break;
-			case "msg":
-				if (params.length < 2) {
-					printMessage("Expect atleast two Arguments: UUID; Message!");
-					break;
-				}
-				try{
-					UserThread receiver = SERVER.USERS.get(UUID.fromString(params[0]));
-					StringBuilder message = new StringBuilder();
-					for (int i = 1; i < params.length; i++) message.append(params[i]);
-					receiver.userMessage(uuid, message.toString());
-				} catch (IllegalArgumentException e){
-					printMessage("Invalid UUID Format!");
+					return;
 				}
-				break;
+			}
+		} catch (InterruptedException e) {
+			abortConnection();
 		}
 	}
 
-	public void userMessage(UUID sender, String message) {
-		if (sender == this.uuid) return;
-		printMessage("Message from User "+ SERVER.getUserName(sender)+": ");
-		printMessage(message);
-		writer.flush();
+	@Override
+	protected void write(byte[] encoded) {
+		checkDropLimit(output.write(encoded));
 	}
 
-	/**
-	 * Sets up receival of encrypted messages with the client
-	 * using RSA.
-	 *
-	 * @see java.security.KeyPairGenerator
-	 * @see UserThread#stopEndToEnd()
-	 * */
-	private void startEndToEnd() {
-		if (endToEndKP != null) stopEndToEnd();
-
-		KeyPairGenerator generator = null;
-		try {
-			generator = KeyPairGenerator.getInstance("RSA");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			printMessage("Server Failed to generate End To End Key Pair!");
-			return;
-		}
-		generator.initialize(2048);
-		this.endToEndKP = generator.generateKeyPair();
-		this.privateKey = endToEndKP.getPrivate();
-		this.publicKey  = endToEndKP.getPublic();
-		try {
-			endToEndEncryptCipher = Cipher.getInstance("RSA");
-			endToEndDecryptCipher = Cipher.getInstance("RSA");
-			endToEndEncryptCipher.init(Cipher.ENCRYPT_MODE, publicKey);
-			endToEndDecryptCipher.init(Cipher.DECRYPT_MODE, privateKey);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-			e.printStackTrace();
-			printMessage("Server Failed to generate End To End Ciphers!");
-			return;
-		}
+	@Override
+	protected void write(StaticText.Frame frame) {
+		checkDropLimit(output.write(frame.bytes()));
+	}
 
-		CONNECTION_ECRYPTED = true;
+	@Override
+	protected void flush() {
+		output.flush();
+	}
 
-		// Tell the client that it should send encrypted messages
-		writer.write(0x03);
-		writer.flush();
+	@Override
+	protected void flushWithin(int millis) {
+		output.flushWithin(millis);
+	}
 
-		writer.write(Base64.getEncoder().encodeToString(publicKey.getEncoded())+"\n");//.replaceAll("(?:\\r\\n|\\n\\r|\\n|\\r)", "")); // Give the client the public key
-		writer.flush();
+	@Override
+	protected int buffered() {
+		return output.buffered();
 	}
 
-	/**
-	 * Stops the client from sending only encrypted messages.
-	 * @see UserThread#startEndToEnd()
-	 * */
-	private void stopEndToEnd() {
-		writer.write(0x04);
-		writer.flush();
-		endToEndDecryptCipher = null;
-		endToEndEncryptCipher = null;
-		privateKey = null;
-		publicKey  = null;
-		endToEndKP = null;
-		CONNECTION_ECRYPTED = false;
+	@Override
+	protected int unsent() {
+		return output.unsent();
 	}
 
 	/**
-	 * "Safely" disconnect the user.
-	 *
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Tasks only exist while input is kept, during which the thread of the
+	 * session waits for them instead of reading.
 	 */
-	public void disconnect() throws IOException, InterruptedException {
-		SERVER.LOGGER.infof("Disconnecting User [IP: %s; UUID: %s]\n", getIP(), uuid);
-		writer.write((byte) 0xff); // SEND CONNECTION_CLOSE CODE
-		writer.flush();
-		socket.close();
-		disconnected = true;
+	@Override
+	protected void runInSession(Runnable task) {
+		tasks.add(task);
 	}
 
-	/**
-	 * Writes a Message to the client with no additional LF/RC.
-	 *
-	 * @param message Message to be written
-	 */
-	public void printMessage(String message) {
-		try {
-			writeText(0, message, false, "");
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	@Override
+	protected void pace(int delay) {
+		output.pause(delay);
 	}
 
-	/**
-	 * Writes a Message to the client with a Line-Feed at the end
-	 *
-	 * @param message Message to be written
-	 */
-	public void printlnMessage(String message) {
+	@Override
+	protected void closeConnection() {
+		output.whenDrained(this::abortConnection);
+	}
+
+	@Override
+	protected void abortConnection() {
 		try {
-			writeText(0, message, true, "\n");
-		} catch (InterruptedException e) {
+			socket.close();
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	/**
-	 * Writes a text Char-by-Char to the user
-	 *
-	 * @param delay     How many milliseconds should be inbetween each char
-	 * @param text      The text to be written
-	 * @param lf        Add a Line-Feed after each segment
-	 * @param splitChar Char to segment the text by
-	 * @throws InterruptedException
-	 */
-	private void writeText(int delay, String text, boolean lf, String splitChar) throws InterruptedException {
-		if (socket.isClosed() || disconnected) return;
-		for (String s : text.split(splitChar)) {
-			writer.write((byte) 0x01);
-			writer.print(s + (lf ? "\n" : ""));
-			writer.flush();
-			Thread.sleep(delay);
-		}
-		writer.write((byte) 0x01);
-		writer.println();
-		writer.flush();
+	@Override
+	protected boolean isClosed() {
+		return socket.isClosed();
 	}
 
 	/**
-	 * Requests input from the user
-	 * @return Last input as a String
+	 * @return The users IP
 	 * */
-	private String requestInput() throws IOException {
-		if (socket.isClosed() || disconnected) return "";
-		writer.write(0x00);
-		writer.flush();
-		return readResponse();
+	@Override
+	public String getIP() {
+		return ((InetSocketAddress)this.socket.getRemoteSocketAddress()).getAddress().toString();
 	}
 
 	/**
-	 * Reads a response from the socket
-	 *
-	 * @return Newest message
-	 * @throws IOException
+	 * Counts the writes which reach the socket.
 	 */
-	private String readResponse() throws IOException {
-		if (socket.isClosed() || disconnected) return "";
-		String message = reader.readLine();
-
-		if (CONNECTION_ECRYPTED) {
-			// Decrypt the message
-			try {
-				message = new String(endToEndDecryptCipher.doFinal(Base64.getDecoder().decode(message
-						.replace("\n", "").replace("\r", ""))));
-			} catch (IllegalBlockSizeException | BadPaddingException  e) {
-				e.printStackTrace();
-				printMessage("Failed to Decrypt Your Message! Regenerating keys");
-				return "";
-			}
+	private class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
 		}
 
-		return message.replace("\n", "").replace("\r", "");
-	}
-
-	/**
-	 * @return The name of the User
-	 * */
-	public String getName() {
-		return this.name;
-	}
-
-	/**
-	 * @return The users UUID
-	 * */
-	public UUID getUuid() {
-		return this.uuid;
-	}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			countWrite(len);
+		}
 
-	/**
-	 * @return The users IP
-	 * */
-	public String getIP() {
-		return ((InetSocketAddress)this.socket.getRemoteSocketAddress()).getAddress().toString();
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			countWrite(1);
+		}
 	}
 }
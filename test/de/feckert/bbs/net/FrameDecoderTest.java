@@ -0,0 +1,195 @@
+package de.feckert.bbs.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the {@link FrameDecoder} puts messages back together which
+ * arrive in parts: V2 frames split anywhere, including inside the header,
+ * frames which outgrow or wrap around the buffer and legacy lines.
+ * <p>
+ * Run with the sources of src and test on the classpath:
+ * java de.feckert.bbs.net.FrameDecoderTest
+ *
+ * @author Felix Eckert
+ */
+public class FrameDecoderTest {
+	public static void main(String[] args) throws IOException {
+		framesFedByteByByte();
+		frameSplitInsideTheHeader();
+		partialFrameAfterCompleteOnes();
+		partialFrameIsMovedToTheFront();
+		largeFrameGrowsTheBuffer();
+		emptyFrames();
+		linesFedInParts();
+		switchToFramesWithinOneFeed();
+		oversizedMessagesFail();
+
+		System.out.println("FrameDecoderTest passed");
+	}
+
+	private static void framesFedByteByByte() throws IOException {
+		byte[] stream = concat(frame(FrameCodec.INPUT, "verify login"), frame(FrameCodec.BINARY, "\u0000\u00ff\n"),
+				frame(FrameCodec.INPUT, "info"));
+		FrameDecoder decoder = binary();
+		List<String> frames = new ArrayList<>();
+		int[] completed = new int[3];
+		for (int i = 0; i < stream.length; i++) {
+			decoder.feed(stream, i, 1, collect(frames));
+			if (frames.size() > 0 && completed[frames.size() - 1] == 0) completed[frames.size() - 1] = i + 1;
+		}
+		check(frames.equals(Arrays.asList("1:verify login", "6:\u0000\u00ff\n", "1:info")), "all frames are decoded, got " + frames);
+		check(completed[0] == 17 && completed[1] == 25 && completed[2] == stream.length,
+				"each frame is handed out with its last byte, got " + Arrays.toString(completed));
+		check(decoder.pending() == 0, "nothing is left pending");
+	}
+
+	private static void frameSplitInsideTheHeader() throws IOException {
+		byte[] stream = frame(FrameCodec.INPUT, "hello");
+		for (int split = 1; split < FrameCodec.HEADER_LENGTH; split++) {
+			FrameDecoder decoder = binary();
+			List<String> frames = new ArrayList<>();
+			decoder.feed(stream, 0, split, collect(frames));
+			check(frames.isEmpty() && decoder.pending() == split, "a partial header is kept, split at " + split);
+			decoder.feed(stream, split, stream.length - split, collect(frames));
+			check(frames.equals(Arrays.asList("1:hello")), "the frame is decoded once complete, split at " + split);
+		}
+	}
+
+	private static void partialFrameAfterCompleteOnes() throws IOException {
+		byte[] stream = concat(frame(FrameCodec.INPUT, "one"), frame(FrameCodec.INPUT, "two"), frame(FrameCodec.INPUT, "three"));
+		int cut = stream.length - 3;
+		FrameDecoder decoder = binary();
+		List<String> frames = new ArrayList<>();
+		decoder.feed(ByteBuffer.wrap(stream, 0, cut), collect(frames));
+		check(frames.equals(Arrays.asList("1:one", "1:two")), "complete frames are handed out at once, got " + frames);
+		check(decoder.pending() == FrameCodec.HEADER_LENGTH + 2, "the started frame is pending, got " + decoder.pending());
+
+		decoder.feed(ByteBuffer.wrap(stream, cut, 3), collect(frames));
+		check(frames.equals(Arrays.asList("1:one", "1:two", "1:three")), "the rest completes the frame, got " + frames);
+	}
+
+	private static void partialFrameIsMovedToTheFront() throws IOException {
+		String first = repeat('a', 4000);
+		String second = repeat('b', 300);
+		byte[] stream = concat(frame(FrameCodec.INPUT, first), frame(FrameCodec.INPUT, second));
+		int cut = FrameCodec.HEADER_LENGTH + first.length() + 50; // Fits the initial buffer, the rest does not
+		FrameDecoder decoder = binary();
+		List<String> frames = new ArrayList<>();
+		decoder.feed(stream, 0, cut, collect(frames));
+		decoder.feed(stream, cut, stream.length - cut, collect(frames));
+		check(frames.equals(Arrays.asList("1:" + first, "1:" + second)), "the frame wrapping the buffer end is intact");
+	}
+
+	private static void largeFrameGrowsTheBuffer() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 20000; i++) text.append(i).append(' ');
+		byte[] stream = frame(FrameCodec.BINARY, text.toString());
+		FrameDecoder decoder = binary();
+		List<String> frames = new ArrayList<>();
+		for (int offset = 0; offset < stream.length; offset += 1500) {
+			decoder.feed(stream, offset, Math.min(1500, stream.length - offset), collect(frames));
+		}
+		check(frames.size() == 1 && frames.get(0).equals("6:" + text), "a frame larger than the buffer is intact");
+	}
+
+	private static void emptyFrames() throws IOException {
+		byte[] stream = concat(frame(FrameCodec.INPUT, ""), frame(FrameCodec.INPUT, ""), frame(FrameCodec.INPUT, "x"));
+		FrameDecoder decoder = binary();
+		List<String> frames = new ArrayList<>();
+		decoder.feed(stream, 0, FrameCodec.HEADER_LENGTH + 2, collect(frames));
+		check(frames.equals(Arrays.asList("1:")), "an empty frame is complete with its header, got " + frames);
+		decoder.feed(stream, FrameCodec.HEADER_LENGTH + 2, stream.length - FrameCodec.HEADER_LENGTH - 2, collect(frames));
+		check(frames.equals(Arrays.asList("1:", "1:", "1:x")), "the following frames are decoded, got " + frames);
+	}
+
+	private static void linesFedInParts() throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		List<String> frames = new ArrayList<>();
+		feed(decoder, "ent", frames);
+		check(frames.isEmpty() && decoder.pending() == 3, "a line without LF is kept");
+		feed(decoder, "er\nposts\nrea", frames);
+		feed(decoder, "d 1\n\n", frames);
+		check(frames.equals(Arrays.asList("1:enter", "1:posts", "1:read 1", "1:")), "lines are split at LF, got " + frames);
+		check(decoder.pending() == 0, "nothing is left pending");
+	}
+
+	private static void switchToFramesWithinOneFeed() throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		List<String> frames = new ArrayList<>();
+		FrameDecoder.Handler handler = (type, data, offset, length) -> {
+			collect(frames).frame(type, data, offset, length);
+			if (frames.size() == 1) decoder.setBinary(true); // Like the answer of the negotiation
+		};
+
+		byte[] line = "25 v2\n".getBytes(StandardCharsets.UTF_8);
+		byte[] stream = concat(line, frame(FrameCodec.INPUT, "enter"), frame(FrameCodec.INPUT, "posts"));
+		decoder.feed(stream, 0, line.length + 7, handler);
+		check(frames.equals(Arrays.asList("1:25 v2")), "the frame after the line is parsed as a frame, got " + frames);
+		decoder.feed(stream, line.length + 7, stream.length - line.length - 7, handler);
+		check(frames.equals(Arrays.asList("1:25 v2", "1:enter", "1:posts")), "frames follow the line, got " + frames);
+	}
+
+	private static void oversizedMessagesFail() throws IOException {
+		byte[] header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH).put((byte) FrameCodec.INPUT)
+				.putInt(FrameDecoder.MAX_FRAME_LENGTH + 1).array();
+		try {
+			binary().feed(header, 0, header.length, collect(new ArrayList<>()));
+			throw new AssertionError("a frame exceeding the maximum length has to fail");
+		} catch (IOException expected) {
+			// Too long
+		}
+
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] chunk = repeat('x', 8192).getBytes(StandardCharsets.UTF_8);
+		try {
+			for (int i = 0; i <= FrameDecoder.MAX_FRAME_LENGTH / chunk.length; i++) {
+				decoder.feed(chunk, 0, chunk.length, collect(new ArrayList<>()));
+			}
+			throw new AssertionError("a line exceeding the maximum length has to fail");
+		} catch (IOException expected) {
+			// Too long
+		}
+	}
+
+	private static FrameDecoder binary() {
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.setBinary(true);
+		return decoder;
+	}
+
+	private static void feed(FrameDecoder decoder, String text, List<String> frames) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		decoder.feed(bytes, 0, bytes.length, collect(frames));
+	}
+
+	// Adds every frame as "type:payload", the payload is copied as the range is only valid during the call
+	private static FrameDecoder.Handler collect(List<String> frames) {
+		return (type, data, offset, length) -> frames.add(type + ":" + new String(data, offset, length, StandardCharsets.ISO_8859_1));
+	}
+
+	private static byte[] frame(int type, String payload) {
+		return FrameCodec.V2.encode(type, payload.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
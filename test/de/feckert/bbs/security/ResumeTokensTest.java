@@ -0,0 +1,104 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+/**
+ * Checks the {@link ResumeTokens}: tokens are never issued to sessions
+ * whose output is sent in the clear, every login revokes the token issued
+ * before it and tokens are single use.
+ * <p>
+ * Run with the sources of src and test on the classpath:
+ * java de.feckert.bbs.security.ResumeTokensTest
+ *
+ * @author Felix Eckert
+ */
+public class ResumeTokensTest {
+	private static UserVerifier alice;
+	private static UserVerifier bob;
+
+	public static void main(String[] args) throws IOException {
+		Logger.UNIVERSAL_LOGFILE_WRITER = new PrintWriter(new StringWriter());
+		File dir = Files.createTempDirectory("resumetokens").toFile();
+		Verifier.STORE_PATH = new File(dir, "verifiers");
+		Verifier.DB_PATH = new File(dir, "verifiers.db");
+		Verifier.loadVerifierDB();
+		alice = Verifier.createVerifier("alice", "secret");
+		bob = Verifier.createVerifier("bob", "secret");
+
+		noTokenForOutputInTheClear();
+		loginRevokesTheEarlierToken();
+		loginInTheClearRevokesTheEarlierToken();
+		tokensAreSingleUse();
+		logoutRevokesTheToken();
+		forgedAndDisabledTokensAreRejected();
+
+		System.out.println("ResumeTokensTest passed");
+	}
+
+	private static void noTokenForOutputInTheClear() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		check(tokens.issue(alice, false) == null, "no token is issued to a session without sealed output");
+		check(tokens.issue(alice, true) != null, "a token is issued to a session with sealed output");
+	}
+
+	private static void loginRevokesTheEarlierToken() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		String first = tokens.issue(alice, true);
+		String second = tokens.issue(alice, true);
+		String other = tokens.issue(bob, true);
+
+		check(tokens.resume(first) == null, "the token of an earlier login is revoked");
+		UserVerifier resumed = tokens.resume(second);
+		check(resumed != null && resumed.getName().equals("alice"), "the token of the last login resumes");
+		check(tokens.resume(other) != null, "tokens of other accounts stay valid");
+	}
+
+	private static void loginInTheClearRevokesTheEarlierToken() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		String sealed = tokens.issue(alice, true);
+		check(tokens.issue(alice, false) == null, "no token is issued in the clear");
+		check(tokens.resume(sealed) == null, "a login in the clear still revokes the earlier token");
+	}
+
+	private static void tokensAreSingleUse() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		String token = tokens.issue(alice, true);
+		check(tokens.resume(token) != null, "a token resumes once");
+		check(tokens.resume(token) == null, "a used token is rejected");
+	}
+
+	private static void logoutRevokesTheToken() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		String first = tokens.issue(alice, true);
+		String second = tokens.issue(alice, true);
+		tokens.revoke(first); // Logout of the earlier session
+		check(tokens.resume(second) != null, "revoking an older token keeps the current one");
+
+		String third = tokens.issue(alice, true);
+		tokens.revoke(third);
+		check(tokens.resume(third) == null, "a revoked token is rejected");
+	}
+
+	private static void forgedAndDisabledTokensAreRejected() {
+		ResumeTokens tokens = new ResumeTokens(600);
+		String token = tokens.issue(alice, true);
+		char last = token.charAt(token.length() - 1);
+		String forged = token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A');
+		check(tokens.resume(forged) == null, "a token with a wrong signature is rejected");
+		check(new ResumeTokens(600).resume(token) == null, "tokens of another key are rejected");
+		check(tokens.resume("not a token") == null && tokens.resume(null) == null, "garbage is rejected");
+
+		ResumeTokens disabled = new ResumeTokens(0);
+		check(disabled.issue(alice, true) == null, "no tokens are issued if resumption is disabled");
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,193 @@
+package de.feckert.bbs.security;
+
+import de.feckert.bbs.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks compaction and reopening of the {@link VerifierLog}: records
+ * appended during a compaction, leftovers of a crashed compaction, stale
+ * indexes, torn log tails and stores without a manifest.
+ * <p>
+ * Run with the sources of src and test on the classpath:
+ * java de.feckert.bbs.security.VerifierLogTest
+ *
+ * @author Felix Eckert
+ */
+public class VerifierLogTest {
+	private static File dir;
+
+	public static void main(String[] args) throws IOException {
+		Logger.UNIVERSAL_LOGFILE_WRITER = new PrintWriter(new StringWriter());
+		dir = Files.createTempDirectory("verifierlog").toFile();
+
+		compactKeepsRecordsAppendedMeanwhile();
+		reopenAfterCompaction();
+		crashedCompactionIsDiscarded();
+		staleIndexIsRebuilt();
+		tornLogTailIsCut();
+		storeWithoutManifestIsGenerationZero();
+
+		System.out.println("VerifierLogTest passed");
+	}
+
+	private static void compactKeepsRecordsAppendedMeanwhile() throws IOException {
+		VerifierLog store = open("meanwhile", new ArrayList<>());
+		store.append(entry("alice"));
+		store.append(entry("bob"));
+		long position = store.getLogSize();
+		long records = store.getRecords();
+		store.append(entry("carol")); // Appended while the snapshot is written
+
+		store.compact(Arrays.asList(entry("alice"), entry("bob")), position, records);
+		check(store.getGeneration() == 1, "compaction switches to generation 1");
+		check(store.getSnapshotCount() == 2, "snapshot holds the compacted verifiers");
+		check(store.getRecords() == 1, "log only holds the record appended meanwhile");
+		store.close();
+
+		List<Verifier.Entry> replayed = new ArrayList<>();
+		store = open("meanwhile", replayed);
+		check(replayed.size() == 1 && replayed.get(0).name.equals("carol"), "reopened log replays only carol, got " + names(replayed));
+		check(store.findByName("alice") != null && store.findByName("bob") != null, "compacted verifiers are found");
+		check(store.findByName("carol") == null, "carol is not in the snapshot");
+		store.close();
+	}
+
+	private static void reopenAfterCompaction() throws IOException {
+		VerifierLog store = open("reopen", new ArrayList<>());
+		for (int generation = 1; generation <= 3; generation++) {
+			List<Verifier.Entry> entries = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				Verifier.Entry entry = entry("u" + generation + "_" + i);
+				store.append(entry);
+				entries.add(entry);
+			}
+			store.compact(entries, store.getLogSize(), store.getRecords());
+		}
+		store.append(entry("late"));
+		store.close();
+
+		List<Verifier.Entry> replayed = new ArrayList<>();
+		store = open("reopen", replayed);
+		check(store.getGeneration() == 3, "reopened at generation 3");
+		check(store.getSnapshotCount() == 150, "snapshot holds 150 verifiers, got " + store.getSnapshotCount());
+		check(replayed.size() == 1, "log replays one verifier, got " + names(replayed));
+		check(store.findByName("u1_0") != null && store.findByName("u3_49") != null, "verifiers of all compactions are found");
+		check(store.findByPublicKey("pk-u2_7") != null, "verifiers are found by Public-Key");
+		check(store.findByName("missing") == null, "unknown names are not found");
+		store.close();
+
+		String[] files = files("reopen");
+		check(Arrays.equals(files, new String[] {"reopen.idx.3", "reopen.log.3", "reopen.manifest", "reopen.snap.3"}),
+				"only the files of generation 3 are left, got " + Arrays.toString(files));
+	}
+
+	private static void crashedCompactionIsDiscarded() throws IOException {
+		VerifierLog store = open("crash", new ArrayList<>());
+		store.append(entry("alice"));
+		store.compact(Arrays.asList(entry("alice")), store.getLogSize(), store.getRecords());
+		store.append(entry("bob"));
+		store.close();
+
+		// A compaction which crashed before switching the manifest
+		Files.write(new File(dir, "crash.snap.2").toPath(), new byte[] {1, 2, 3});
+		Files.write(new File(dir, "crash.log.2").toPath(), new byte[0]);
+
+		List<Verifier.Entry> replayed = new ArrayList<>();
+		store = open("crash", replayed);
+		check(store.getGeneration() == 1, "the manifest still names generation 1");
+		check(store.findByName("alice") != null, "snapshot of generation 1 is used");
+		check(replayed.size() == 1 && replayed.get(0).name.equals("bob"), "log of generation 1 is replayed");
+		check(!new File(dir, "crash.snap.2").exists() && !new File(dir, "crash.log.2").exists(), "leftovers are deleted");
+
+		// The next compaction reuses generation 2
+		store.compact(replayed, store.getLogSize(), store.getRecords());
+		check(store.getGeneration() == 2 && store.getSnapshotCount() == 2, "next compaction writes generation 2");
+		store.close();
+	}
+
+	private static void staleIndexIsRebuilt() throws IOException {
+		VerifierLog store = open("stale", new ArrayList<>());
+		store.append(entry("alice"));
+		store.compact(Arrays.asList(entry("alice")), store.getLogSize(), store.getRecords());
+		store.close();
+
+		try (RandomAccessFile index = new RandomAccessFile(new File(dir, "stale.idx.1"), "rw")) {
+			index.seek(4);
+			index.writeLong(42); // Generation of another snapshot
+		}
+
+		store = open("stale", new ArrayList<>());
+		check(store.findByName("alice") != null, "lookups work with the rebuilt index");
+		store.close();
+	}
+
+	private static void tornLogTailIsCut() throws IOException {
+		VerifierLog store = open("torn", new ArrayList<>());
+		store.append(entry("alice"));
+		long valid = store.getLogSize();
+		store.append(entry("bob"));
+		store.close();
+
+		try (RandomAccessFile log = new RandomAccessFile(new File(dir, "torn.log"), "rw")) {
+			log.setLength(log.length() - 3); // Crash during the append of bob
+		}
+
+		List<Verifier.Entry> replayed = new ArrayList<>();
+		store = open("torn", replayed);
+		check(replayed.size() == 1 && replayed.get(0).name.equals("alice"), "only alice is replayed, got " + names(replayed));
+		check(store.getLogSize() == valid, "torn record is cut off");
+		store.append(entry("carol"));
+		store.close();
+
+		replayed.clear();
+		open("torn", replayed).close();
+		check(names(replayed).equals("[alice, carol]"), "appends continue after the cut, got " + names(replayed));
+	}
+
+	private static void storeWithoutManifestIsGenerationZero() throws IOException {
+		VerifierLog store = open("plain", new ArrayList<>());
+		check(!store.exists() || store.getGeneration() == 0, "new stores start at generation 0");
+		store.append(entry("alice"));
+		check(new File(dir, "plain.log").exists() && !new File(dir, "plain.manifest").exists(), "generation 0 uses the plain names");
+
+		store.compact(Arrays.asList(entry("alice")), store.getLogSize(), store.getRecords());
+		check(!new File(dir, "plain.log").exists(), "the plain log is deleted after the switch");
+		check(new File(dir, "plain.manifest").exists() && store.exists(), "the manifest names generation 1");
+		store.close();
+	}
+
+	private static VerifierLog open(String name, List<Verifier.Entry> replayed) throws IOException {
+		VerifierLog store = new VerifierLog(new File(dir, name));
+		store.open(replayed::add);
+		return store;
+	}
+
+	private static Verifier.Entry entry(String name) {
+		return new Verifier.Entry(name, "pk-" + name, new byte[] {1, 2, 3, 4}, new byte[] {5, 6, 7, 8});
+	}
+
+	private static String names(List<Verifier.Entry> entries) {
+		List<String> names = new ArrayList<>();
+		for (Verifier.Entry entry : entries) names.add(entry.name);
+		return names.toString();
+	}
+
+	private static String[] files(String name) {
+		String[] files = dir.list((d, file) -> file.startsWith(name + "."));
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
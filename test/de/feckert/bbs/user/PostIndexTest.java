@@ -0,0 +1,163 @@
+package de.feckert.bbs.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Checks the results of the {@link PostIndex}: posts containing all terms
+ * of a query, newest first and limited, terms split and compared like the
+ * index does it, and the same results from an index built in parallel at
+ * startup as from one updated post by post.
+ * <p>
+ * Run with the sources of src and test on the classpath:
+ * java de.feckert.bbs.user.PostIndexTest
+ *
+ * @author Felix Eckert
+ */
+public class PostIndexTest {
+	private static final String[] WORDS = {"java", "nio", "bbs", "socket", "thread", "post", "journal", "index",
+			"search", "verifier", "modem", "ansi", "cipher", "frame", "session", "buffer"};
+
+	public static void main(String[] args) {
+		findsPostsWithAllTerms();
+		termsIgnoreCaseAndPunctuation();
+		termsOutsideTheLengthsAreIgnored();
+		newestResultsUpToTheLimit();
+		updateIndexesNewPostsOnly();
+		builtIndexMatchesUpdatedIndex();
+
+		System.out.println("PostIndexTest passed");
+	}
+
+	private static void findsPostsWithAllTerms() {
+		PostStore store = store(
+				post("Modem speeds", "My modem dials at 2400 baud"),
+				post("Socket help", "Blocking socket reads hang"),
+				post("NIO sockets", "Moving the socket code to NIO"),
+				post("Baud rates", "Which modem for 9600 baud"));
+		PostIndex index = PostIndex.build(store);
+
+		check(Arrays.equals(index.search("modem", 10), new int[] {3, 0}), "posts with the term, newest first");
+		check(Arrays.equals(index.search("modem baud", 10), new int[] {3, 0}), "posts with both terms");
+		check(Arrays.equals(index.search("socket nio", 10), new int[] {2}), "only posts with all terms");
+		check(Arrays.equals(index.search("socket", 10), new int[] {2, 1}), "terms are found in titles and texts");
+		check(Arrays.equals(index.search("help", 10), new int[] {1}), "terms of the title are found");
+		check(index.search("modem fax", 10).length == 0, "no posts if one term is unknown");
+		check(index.search("sock", 10).length == 0, "terms are not matched by prefix");
+	}
+
+	private static void termsIgnoreCaseAndPunctuation() {
+		PostStore store = store(
+				post("Hello, WORLD!", "first"),
+				post("hello-world", "second"),
+				post("Hello", "worldwide"));
+		PostIndex index = PostIndex.build(store);
+
+		check(Arrays.equals(index.search("hello world", 10), new int[] {1, 0}), "case and punctuation are ignored");
+		check(Arrays.equals(index.search("WORLD; Hello. world", 10), new int[] {1, 0}), "query terms are split the same way");
+		check(index.search("!!! ...", 10).length == 0, "a query without terms finds nothing");
+	}
+
+	private static void termsOutsideTheLengthsAreIgnored() {
+		String longest = repeat('a', PostIndex.MAX_TERM_LENGTH);
+		String tooLong = repeat('b', PostIndex.MAX_TERM_LENGTH + 1);
+		PostStore store = store(post("a b c", longest + " " + tooLong + " ok"));
+		PostIndex index = PostIndex.build(store);
+
+		check(Arrays.equals(index.search(longest, 10), new int[] {0}), "terms of the max length are indexed");
+		check(index.search(tooLong, 10).length == 0, "longer terms are not indexed");
+		check(index.search("a", 10).length == 0, "shorter terms are not indexed");
+		check(Arrays.equals(index.search("a ok", 10), new int[] {0}), "too short query terms are left out");
+		check(index.getTerms() == 2, "only the valid terms are kept, got " + index.getTerms());
+	}
+
+	private static void newestResultsUpToTheLimit() {
+		PostStore store = new PostStore();
+		for (int i = 0; i < 100; i++) store.add(post("Post " + i, i % 3 == 0 ? "fizz" : "buzz"));
+		PostIndex index = PostIndex.build(store);
+
+		check(Arrays.equals(index.search("fizz", 3), new int[] {99, 96, 93}), "the newest posts up to the limit");
+		check(index.search("fizz", 1000).length == 34, "all posts if there are fewer than the limit");
+		check(index.search("fizz", 0).length == 0, "no posts for a limit of 0");
+	}
+
+	private static void updateIndexesNewPostsOnly() {
+		PostStore store = store(post("Journal", "journal journal journal"));
+		PostIndex index = PostIndex.build(store);
+		check(index.getIndexed() == 1, "built from one post");
+
+		store.add(post("Recovery", "the journal tail"));
+		check(index.search("journal", 10).length == 1, "posts are found once they are indexed");
+		index.update(store);
+		index.update(store);
+		check(index.getIndexed() == 2, "new posts are indexed once");
+		check(Arrays.equals(index.search("journal", 10), new int[] {1, 0}), "a repeated term lists a post once");
+		check(Arrays.equals(index.search("tail", 10), new int[] {1}), "terms of new posts are found");
+	}
+
+	// Enough posts for several build threads, compared with a scan of the posts
+	private static void builtIndexMatchesUpdatedIndex() {
+		Random random = new Random(42);
+		PostStore store = new PostStore();
+		for (int i = 0; i < 20000; i++) store.add(post(words(random, 2), words(random, 8)));
+
+		PostIndex built = PostIndex.build(store);
+		PostIndex updated = new PostIndex();
+		updated.update(store);
+		check(built.getIndexed() == store.size() && built.getTerms() == updated.getTerms(), "both indexes hold all posts and terms");
+
+		for (int q = 0; q < 200; q++) {
+			String query = words(random, 1 + q % 3);
+			int[] expected = scan(store, query, 25);
+			check(Arrays.equals(built.search(query, 25), expected), "built index finds the posts for \"" + query + "\"");
+			check(Arrays.equals(updated.search(query, 25), expected), "updated index finds the posts for \"" + query + "\"");
+		}
+	}
+
+	// The newest posts containing all terms of the query, by looking at every post
+	private static int[] scan(PostStore store, String query, int limit) {
+		HashSet<String> terms = new HashSet<>();
+		PostIndex.tokenize(query, terms::add);
+		List<Integer> found = new ArrayList<>();
+		for (int id = store.size() - 1; id >= 0 && found.size() < limit; id--) {
+			HashSet<String> postTerms = new HashSet<>();
+			PostIndex.tokenize(store.get(id).getTitle(), postTerms::add);
+			PostIndex.tokenize(store.get(id).getText(), postTerms::add);
+			if (postTerms.containsAll(terms)) found.add(id);
+		}
+
+		int[] ids = new int[found.size()];
+		for (int i = 0; i < ids.length; i++) ids[i] = found.get(i);
+		return ids;
+	}
+
+	private static String words(Random random, int count) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < count; i++) out.append(WORDS[random.nextInt(WORDS.length)]).append(i % 4 == 3 ? ". " : " ");
+		return out.toString();
+	}
+
+	private static PostStore store(Posts.Post... posts) {
+		PostStore store = new PostStore();
+		for (Posts.Post post : posts) store.add(post);
+		return store;
+	}
+
+	private static Posts.Post post(String title, String text) {
+		return new Posts.Post(UUID.randomUUID(), title, text, true, null);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,187 @@
+package de.feckert.bbs.user;
+
+import de.feckert.bbs.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Checks the recovery of the {@link PostJournal} at startup: a torn record
+ * at the end is cut off, damage anywhere else fails the open and leaves the
+ * journal as it is, with a copy next to it.
+ * <p>
+ * Run with the sources of src and test on the classpath:
+ * java de.feckert.bbs.user.PostJournalTest
+ *
+ * @author Felix Eckert
+ */
+public class PostJournalTest {
+	private static final int POSTS = 5;
+
+	public static void main(String[] args) throws IOException {
+		Logger.UNIVERSAL_LOGFILE_WRITER = new PrintWriter(new StringWriter());
+
+		reopenLoadsAllPosts();
+		partialLastRecordIsCut();
+		damagedLastRecordIsCut();
+		zeroedTailIsCut();
+		damagedRecordInTheMiddleFails();
+		brokenLengthInTheMiddleFails();
+
+		System.out.println("PostJournalTest passed");
+	}
+
+	private static void reopenLoadsAllPosts() throws IOException {
+		File dir = write();
+		PostStore store = new PostStore();
+		PostJournal journal = open(dir, store);
+		check(store.size() == POSTS, "all posts are loaded, got " + store.size());
+		check(store.get(3) instanceof Posts.ResponsePost && ((Posts.ResponsePost) store.get(3)).originalPost == store.get(1),
+				"replies are linked to their original post");
+		check(store.get(4).getTitle().equals("Title 4") && store.get(4).getText().equals("Text 4"), "posts are restored as written");
+		journal.close();
+	}
+
+	private static void partialLastRecordIsCut() throws IOException {
+		File dir = write();
+		File file = new File(dir, PostJournal.FILE_NAME);
+		long last = recordStart(dir, POSTS - 1);
+		truncate(file, file.length() - 5); // Crash while the last post was written
+
+		PostStore store = new PostStore();
+		PostJournal journal = open(dir, store);
+		check(store.size() == POSTS - 1, "the posts before the torn one are loaded, got " + store.size());
+		check(file.length() == last, "the torn record is cut off");
+		check(copies(dir).length == 0, "no copy is kept of a torn journal");
+
+		// Saving continues behind the cut
+		store.add(new Posts.Post(UUID.randomUUID(), "After", "Cut", true, null));
+		journal.commit(store);
+		journal.close();
+		store = new PostStore();
+		open(dir, store).close();
+		check(store.size() == POSTS && store.get(POSTS - 1).getTitle().equals("After"), "posts saved after the cut are loaded");
+	}
+
+	private static void damagedLastRecordIsCut() throws IOException {
+		File dir = write();
+		File file = new File(dir, PostJournal.FILE_NAME);
+		flip(file, file.length() - 2); // Last record complete in length, but not on disk
+
+		PostStore store = new PostStore();
+		open(dir, store).close();
+		check(store.size() == POSTS - 1, "a damaged last record is torn, got " + store.size());
+	}
+
+	private static void zeroedTailIsCut() throws IOException {
+		File dir = write();
+		File file = new File(dir, PostJournal.FILE_NAME);
+		long length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length + 4096); // Allocated by the file system, never written
+		}
+
+		PostStore store = new PostStore();
+		open(dir, store).close();
+		check(store.size() == POSTS, "all posts are loaded, got " + store.size());
+		check(file.length() == length, "the zeros are cut off");
+	}
+
+	private static void damagedRecordInTheMiddleFails() throws IOException {
+		File dir = write();
+		File file = new File(dir, PostJournal.FILE_NAME);
+		flip(file, recordStart(dir, 2) + 12);
+		byte[] damaged = Files.readAllBytes(file.toPath());
+
+		expectDamage(dir, damaged);
+	}
+
+	private static void brokenLengthInTheMiddleFails() throws IOException {
+		File dir = write();
+		File file = new File(dir, PostJournal.FILE_NAME);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(recordStart(dir, 1));
+			raf.writeInt(-7);
+		}
+		byte[] damaged = Files.readAllBytes(file.toPath());
+
+		expectDamage(dir, damaged);
+	}
+
+	// Opening fails, the journal is left as it is and a copy of it is kept
+	private static void expectDamage(File dir, byte[] damaged) throws IOException {
+		File file = new File(dir, PostJournal.FILE_NAME);
+		try {
+			open(dir, new PostStore());
+			throw new AssertionError("opening a damaged journal has to fail");
+		} catch (IOException expected) {
+			// Damaged
+		}
+		check(Arrays.equals(Files.readAllBytes(file.toPath()), damaged), "the damaged journal is not modified");
+		File[] copies = copies(dir);
+		check(copies.length == 1 && Arrays.equals(Files.readAllBytes(copies[0].toPath()), damaged), "a copy of the journal is kept");
+	}
+
+	// Journal of five posts, the fourth one replying to the second
+	private static File write() throws IOException {
+		File dir = Files.createTempDirectory("postjournal").toFile();
+		PostStore store = new PostStore();
+		PostJournal journal = open(dir, store);
+		for (int i = 0; i < POSTS; i++) {
+			Posts.Post post = i == 3
+					? new Posts.ResponsePost(store.get(1), UUID.randomUUID(), "Title " + i, "Text " + i, true, null)
+					: new Posts.Post(UUID.randomUUID(), "Title " + i, "Text " + i, true, null);
+			store.add(post);
+		}
+		journal.commit(store);
+		journal.close();
+		return dir;
+	}
+
+	private static PostJournal open(File dir, PostStore store) throws IOException {
+		PostJournal journal = new PostJournal(dir);
+		journal.open(store);
+		return journal;
+	}
+
+	// Offset of the record of a post
+	private static long recordStart(File dir, int id) throws IOException {
+		long offset = 0;
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, PostJournal.FILE_NAME), "r")) {
+			for (int i = 0; i < id; i++) {
+				raf.seek(offset);
+				offset += 8 + raf.readInt();
+			}
+		}
+		return offset;
+	}
+
+	private static void flip(File file, long offset) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xFF);
+		}
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+	}
+
+	private static File[] copies(File dir) {
+		return dir.listFiles((d, name) -> name.startsWith(PostJournal.FILE_NAME + ".corrupt-"));
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}